@@ -5,8 +5,7 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +51,14 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+
+		String queue = Config.getString("Interrupt.eventQueue", "heap");
+		if (queue.equals("heap"))
+			pending = new HeapQueue();
+		else if (queue.equals("tree"))
+			pending = new TreeQueue();
+		else
+			Lib.assertNotReached("unknown Interrupt.eventQueue: " + queue);
 	}
 
 	/**
@@ -119,11 +125,38 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Skip ahead to the next pending interrupt, as if the kernel had spun in
+	 * an idle loop until it was due. Each skipped pass of the loop is charged
+	 * <tt>Stats.KernelTick</tt> of kernel time, exactly as the ticks would
+	 * have been, and time stops one pass short of the interrupt, so that it
+	 * is delivered by the next tick when interrupts are enabled.
+	 * 
+	 * <p>
+	 * Must be called with interrupts disabled, and only when no thread can
+	 * run until an interrupt occurs.
+	 */
+	public void idle() {
+		Lib.assertTrue(disabled());
+
+		if (pending.isEmpty() || Lib.test(dbgInt))
+			return;
+
+		Stats stats = privilege.stats;
+		long skipped = (pending.first().time - stats.totalTicks - 1)
+				/ Stats.KernelTick;
+
+		if (skipped > 0) {
+			stats.kernelTicks += skipped * Stats.KernelTick;
+			stats.totalTicks += skipped * Stats.KernelTick;
+		}
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+		PendingInterrupt toOccur = newPendingInterrupt(time, type, handler);
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
@@ -151,6 +184,53 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private long nextInterruptTime() {
+		if (pending.isEmpty())
+			return Long.MAX_VALUE;
+
+		return pending.first().time;
+	}
+
+	/**
+	 * Get a pending interrupt from the pool, or allocate one if the pool is
+	 * empty.
+	 */
+	private PendingInterrupt newPendingInterrupt(long time, String type,
+			Runnable handler) {
+		PendingInterrupt toOccur = freeList;
+
+		if (toOccur == null)
+			return new PendingInterrupt(time, type, handler);
+
+		freeList = toOccur.nextFree;
+		toOccur.nextFree = null;
+		toOccur.set(time, type, handler);
+		return toOccur;
+	}
+
+	/**
+	 * Return a pending interrupt whose handler has run to the pool.
+	 */
+	private void freePendingInterrupt(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.nextFree = freeList;
+		freeList = toOccur;
+	}
+
+	private void addUserTicks(long ticks) {
+		Stats stats = privilege.stats;
+
+		Lib.assertTrue(ticks >= 0);
+		if (ticks == 0)
+			return;
+
+		Lib.assertTrue(stats.totalTicks + ticks * Stats.UserTick < nextInterruptTime());
+
+		stats.userTicks += ticks * Stats.UserTick;
+		stats.totalTicks += ticks * Stats.UserTick;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -162,15 +242,13 @@ public final class Interrupt {
 		if (pending.isEmpty())
 			return;
 
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (pending.first().time > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (!pending.isEmpty() && pending.first().time <= time) {
+			PendingInterrupt next = pending.removeFirst();
 
 			Lib.assertTrue(next.time <= time);
 
@@ -180,6 +258,8 @@ public final class Interrupt {
 			Lib.debug(dbgInt, "  " + next.type);
 
 			next.handler.run();
+
+			freePendingInterrupt(next);
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,8 +270,11 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
+		PendingInterrupt[] sorted = pending.toArray();
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			PendingInterrupt toOccur = sorted[i];
 			System.out.println("  " + toOccur.type + ", scheduled at "
 					+ toOccur.time);
 		}
@@ -201,6 +284,10 @@ public final class Interrupt {
 
 	private class PendingInterrupt implements Comparable {
 		PendingInterrupt(long time, String type, Runnable handler) {
+			set(time, type, handler);
+		}
+
+		void set(long time, String type, Runnable handler) {
 			this.time = time;
 			this.type = type;
 			this.handler = handler;
@@ -230,6 +317,157 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		/** The next interrupt in the pool, while this one is unused. */
+		PendingInterrupt nextFree;
+	}
+
+	/**
+	 * A set of pending interrupts, ordered by time and then by the order in
+	 * which they were scheduled.
+	 */
+	private interface EventQueue {
+		boolean isEmpty();
+
+		/** Return the earliest pending interrupt. */
+		PendingInterrupt first();
+
+		/** Remove and return the earliest pending interrupt. */
+		PendingInterrupt removeFirst();
+
+		void add(PendingInterrupt toOccur);
+
+		/** Return the pending interrupts, in no particular order. */
+		PendingInterrupt[] toArray();
+	}
+
+	/**
+	 * An event queue backed by a <tt>TreeSet</tt>.
+	 */
+	private class TreeQueue implements EventQueue {
+		public boolean isEmpty() {
+			return set.isEmpty();
+		}
+
+		public PendingInterrupt first() {
+			return set.first();
+		}
+
+		public PendingInterrupt removeFirst() {
+			return set.pollFirst();
+		}
+
+		public void add(PendingInterrupt toOccur) {
+			set.add(toOccur);
+		}
+
+		public PendingInterrupt[] toArray() {
+			return set.toArray(new PendingInterrupt[set.size()]);
+		}
+
+		private TreeSet<PendingInterrupt> set = new TreeSet<PendingInterrupt>();
+	}
+
+	/**
+	 * An event queue backed by an array-based 4-ary heap. The keys are kept
+	 * in primitive arrays next to the interrupts, so sifting compares them
+	 * without touching the interrupt objects.
+	 */
+	private class HeapQueue implements EventQueue {
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public PendingInterrupt first() {
+			return (size == 0) ? null : heap[0];
+		}
+
+		public PendingInterrupt removeFirst() {
+			if (size == 0)
+				return null;
+
+			PendingInterrupt first = heap[0];
+
+			size--;
+			if (size > 0)
+				siftDown(0, heap[size], times[size], ids[size]);
+			heap[size] = null;
+
+			return first;
+		}
+
+		public void add(PendingInterrupt toOccur) {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2);
+				times = Arrays.copyOf(times, size * 2);
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+
+			siftUp(size++, toOccur, toOccur.time, toOccur.id);
+		}
+
+		public PendingInterrupt[] toArray() {
+			return Arrays.copyOf(heap, size);
+		}
+
+		private boolean before(long time1, long id1, long time2, long id2) {
+			return time1 < time2 || (time1 == time2 && id1 < id2);
+		}
+
+		private void siftUp(int i, PendingInterrupt toOccur, long time, long id) {
+			while (i > 0) {
+				int parent = (i - 1) >> 2;
+				if (!before(time, id, times[parent], ids[parent]))
+					break;
+
+				move(parent, i);
+				i = parent;
+			}
+
+			put(i, toOccur, time, id);
+		}
+
+		private void siftDown(int i, PendingInterrupt toOccur, long time, long id) {
+			while (true) {
+				int child = (i << 2) + 1;
+				if (child >= size)
+					break;
+
+				// find the earliest of up to four children
+				int best = child;
+				int last = Math.min(child + 4, size);
+				for (int c = child + 1; c < last; c++) {
+					if (before(times[c], ids[c], times[best], ids[best]))
+						best = c;
+				}
+
+				if (!before(times[best], ids[best], time, id))
+					break;
+
+				move(best, i);
+				i = best;
+			}
+
+			put(i, toOccur, time, id);
+		}
+
+		private void move(int from, int to) {
+			put(to, heap[from], times[from], ids[from]);
+		}
+
+		private void put(int i, PendingInterrupt toOccur, long time, long id) {
+			heap[i] = toOccur;
+			times[i] = time;
+			ids[i] = id;
+		}
+
+		private PendingInterrupt[] heap = new PendingInterrupt[16];
+
+		private long[] times = new long[16];
+
+		private long[] ids = new long[16];
+
+		private int size = 0;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +476,10 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	private EventQueue pending;
+
+	/** Pending interrupts that have run and can be reused. */
+	private PendingInterrupt freeList = null;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +491,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long nextInterruptTime() {
+			return Interrupt.this.nextInterruptTime();
+		}
+
+		public void addUserTicks(long ticks) {
+			Interrupt.this.addUserTicks(ticks);
+		}
 	}
 }
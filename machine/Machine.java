@@ -97,6 +97,11 @@ public final class Machine {
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
+
+		// the machine has run for as long as its furthest processor
+		for (int i = 0; i < numProcessors(); i++)
+			stats.totalTicks = Math.max(stats.totalTicks, processors[i].time);
+
 		stats.print();
 		terminate();
 	}
@@ -178,6 +183,14 @@ public final class Machine {
 			if (numPhysPages == -1)
 				numPhysPages = Config.getInteger("Processor.numPhysPages");
 			processor = new Processor(privilege, numPhysPages);
+
+			processors = new Processor[Config.getInteger(
+					"Machine.numProcessors", 1)];
+			Lib.assertTrue(processors.length >= 1);
+
+			processors[0] = processor;
+			for (int i = 1; i < processors.length; i++)
+				processors[i] = new Processor(privilege, processor, i);
 		}
 
 		if (Config.getBoolean("Machine.console"))
@@ -331,6 +344,55 @@ public final class Machine {
 		return processor;
 	}
 
+	/**
+	 * Return the specified MIPS processor of a multiprocessor machine.
+	 * 
+	 * @param id the number of the processor.
+	 * @return the processor numbered <i>id</i>.
+	 */
+	public static Processor processor(int id) {
+		Lib.assertTrue(id >= 0 && id < numProcessors());
+		return processors[id];
+	}
+
+	/**
+	 * Return the number of MIPS processors, configured by
+	 * <tt>Machine.numProcessors</tt>.
+	 * 
+	 * @return the number of processors, or <tt>0</tt> if there are none.
+	 */
+	public static int numProcessors() {
+		return (processors == null) ? 0 : processors.length;
+	}
+
+	/**
+	 * Switch the simulation to the specified processor, which then becomes
+	 * the one returned by <tt>processor()</tt>, and bring its clock forward to
+	 * <i>time</i> if it is behind.
+	 * 
+	 * <p>
+	 * The processors of a multiprocessor machine take turns executing, but
+	 * each keeps its own simulated time, so work done on different processors
+	 * overlaps in time. The clock of the processor that is executing is the
+	 * one the interrupt controller and <tt>Timer.getTime()</tt> see; the
+	 * others are saved until they execute again. The kernel calls this when
+	 * it dispatches a thread, passing the time the thread became ready, since
+	 * no processor can run a thread before then.
+	 * 
+	 * @param id the number of the processor to run.
+	 * @param time the earliest time at which the processor may continue.
+	 */
+	public static void switchProcessor(int id, long time) {
+		Lib.assertTrue(interrupt.disabled());
+
+		processor.time = stats.totalTicks;
+
+		processor = processor(id);
+		privilege.processor = processor.processorPrivilege;
+
+		stats.totalTicks = Math.max(processor.time, time);
+	}
+
 	/**
 	 * Return the hardware console.
 	 * 
@@ -375,6 +437,8 @@ public final class Machine {
 
 	private static Processor processor = null;
 
+	private static Processor[] processors = null;
+
 	private static SerialConsole console = null;
 
 	private static FileSystem stubFileSystem = null;
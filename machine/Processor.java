@@ -27,10 +27,32 @@ public final class Processor {
 	 * @param numPhysPages the number of pages of physical memory to attach.
 	 */
 	public Processor(Privilege privilege, int numPhysPages) {
-		System.out.print(" processor");
+		this(privilege, numPhysPages, null, 0);
+	}
+
+	/**
+	 * Allocate an additional MIPS processor for a multiprocessor machine. The
+	 * new processor has its own registers, TLB and decoded-instruction caches,
+	 * but shares physical memory with <i>primary</i>.
+	 * 
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param primary the processor whose memory to share.
+	 * @param id the number of the new processor.
+	 */
+	public Processor(Privilege privilege, Processor primary, int id) {
+		this(privilege, primary.numPhysPages, primary, id);
+	}
+
+	private Processor(Privilege privilege, int numPhysPages,
+			Processor primary, int id) {
+		if (primary == null)
+			System.out.print(" processor");
 
 		this.privilege = privilege;
-		privilege.processor = new ProcessorPrivilege();
+		this.id = id;
+		processorPrivilege = new ProcessorPrivilege();
+		if (primary == null)
+			privilege.processor = processorPrivilege;
 
 		Class<?> clsKernel = Lib.loadClass(Config.getString("Kernel.kernel"));
 		Class<?> clsVMKernel = Lib.tryLoadClass("nachos.vm.VMKernel");
@@ -43,18 +65,99 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		if (primary != null)
+			mainMemory = primary.mainMemory;
+		else
+			mainMemory = new byte[pageSize * numPhysPages];
+
+		// decoded instructions run on the registers of the processor that
+		// decoded them, so each processor has its own; they are tagged with
+		// the memory they came from, so a write by another processor is
+		// still noticed
+		if (Config.getBoolean("Processor.cacheDecoded", true))
+			decodeCache = new Instruction[numPhysPages][];
+		else
+			decodeCache = null;
+
+		if (Config.getBoolean("Processor.basicBlocks", false))
+			blockCache = new BasicBlock[numPhysPages][];
+		else
+			blockCache = null;
+
+		compileThreshold = Config.getInteger("Processor.compileThreshold", 0);
+
+		batchTicks = Config.getBoolean("Processor.batchTicks", true);
+
+		tracing = Lib.test(dbgProcessor);
+		disassemblingEach = (Lib.test(dbgDisassemble) && !tracing)
+				|| Lib.test(dbgFullDisassemble);
+		disassemblingDecoded = Lib.test(dbgDisassemble) && tracing
+				&& !Lib.test(dbgFullDisassemble);
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", tlbSize);
+			tlbWays = Config.getInteger("Processor.tlbAssociativity", 0);
+			if (tlbWays == 0)
+				tlbWays = tlbSize;
+			// an instruction may fetch from one page and access another that
+			// maps to the same set, so each set needs room for both
+			Lib.assertTrue(tlbSize >= 2 && tlbWays >= 2 && tlbSize % tlbWays == 0);
+			tlbSets = tlbSize / tlbWays;
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
+
+			numASIDs = Config.getInteger("Processor.numASIDs", numASIDs);
+			Lib.assertTrue(numASIDs >= 1);
+			tlbAsids = new int[tlbSize];
+
+			tlbHits = new long[tlbSets];
+			tlbMisses = new long[tlbSets];
+
+			// a fully associative TLB is searched through a hash on the vpn
+			if (tlbSets == 1) {
+				int numBuckets = 1;
+				while (numBuckets < tlbSize)
+					numBuckets *= 2;
+
+				tlbBuckets = new int[numBuckets];
+				tlbChain = new int[tlbSize];
+				for (int i = 0; i < numBuckets; i++)
+					tlbBuckets[i] = -1;
+				for (int i = 0; i < tlbSize; i++)
+					hashTLBEntry(i);
+			}
 		}
 		else {
 			translations = null;
 		}
 	}
 
+	/**
+	 * Return the number of this processor. The first processor is number
+	 * <tt>0</tt>.
+	 * 
+	 * @return the number of this processor.
+	 */
+	public int getID() {
+		return id;
+	}
+
+	/**
+	 * Return the simulated time of this processor. On a multiprocessor
+	 * machine, this is the current time if this processor is executing, and
+	 * otherwise the time at which it stopped.
+	 * 
+	 * @return the simulated time of this processor.
+	 */
+	public long getTime() {
+		if (privilege.processor == processorPrivilege)
+			return privilege.stats.totalTicks;
+		else
+			return time;
+	}
+
 	/**
 	 * Set the exception handler, called whenever a user exception occurs.
 	 * 
@@ -91,9 +194,26 @@ public final class Processor {
 
 		Instruction inst = new Instruction();
 
+		// the disassembler prints from fetch() and decode(), so bypass the
+		// decoded-instruction and block caches whenever it is enabled
+		boolean debugging = (Lib.test(dbgProcessor)
+				|| Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble));
+
+		// the interrupt debugger prints every tick, so don't batch them
+		if (blockCache != null && !debugging && !Lib.test(dbgInt))
+			runBlocks();
+
+		boolean cached = (decodeCache != null && !debugging);
+
+		if (batchTicks && !Lib.test(dbgInt))
+			runBatched(cached);
+
 		while (true) {
 			try {
-				inst.run();
+				if (cached)
+					fetchDecoded().runDecoded();
+				else
+					inst.run();
 			}
 			catch (MipsException e) {
 				e.handle();
@@ -186,6 +306,112 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the number of entries in each set of this processor's TLB. A
+	 * fully associative TLB has a single set containing every entry.
+	 * 
+	 * @return the associativity of this processor's TLB.
+	 */
+	public int getTLBAssociativity() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the number of sets in this processor's TLB.
+	 * 
+	 * @return the number of sets in this processor's TLB.
+	 */
+	public int getTLBNumSets() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbSets;
+	}
+
+	/**
+	 * Return the number of address-space identifiers this processor's TLB can
+	 * tag entries with, configured by <tt>Processor.numASIDs</tt>.
+	 * 
+	 * @return the number of address-space identifiers.
+	 */
+	public int getNumASIDs() {
+		Lib.assertTrue(usingTLB);
+
+		return numASIDs;
+	}
+
+	/**
+	 * Set the current address-space identifier. A TLB entry only translates
+	 * while the identifier it was filled under is current, so the entries of
+	 * several address spaces can be in the TLB at once.
+	 * 
+	 * <p>
+	 * The identifier is initially <tt>0</tt>, so a kernel that never sets it
+	 * sees a TLB without tags.
+	 * 
+	 * @param asid the new address-space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		currentAsid = asid;
+	}
+
+	/**
+	 * Return the current address-space identifier.
+	 * 
+	 * @return the current address-space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return currentAsid;
+	}
+
+	/**
+	 * Return the set that may hold a translation for the specified virtual
+	 * page. The entries of set <i>s</i> are numbered from
+	 * <tt>s * getTLBAssociativity()</tt> to
+	 * <tt>(s+1) * getTLBAssociativity() - 1</tt>.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the index of the TLB set for <i>vpn</i>.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(vpn >= 0);
+
+		return vpn % tlbSets;
+	}
+
+	/**
+	 * Return the number of translations that hit in the specified TLB set.
+	 * 
+	 * @param set the index of the TLB set.
+	 * @return the number of hits in that set.
+	 */
+	public long getTLBHits(int set) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(set >= 0 && set < tlbSets);
+
+		return tlbHits[set];
+	}
+
+	/**
+	 * Return the number of translations that missed in the specified TLB set.
+	 * 
+	 * @param set the index of the TLB set.
+	 * @return the number of misses in that set.
+	 */
+	public long getTLBMisses(int set) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(set >= 0 && set < tlbSets);
+
+		return tlbMisses[set];
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -199,12 +425,70 @@ public final class Processor {
 		return new TranslationEntry(translations[number]);
 	}
 
+	/**
+	 * Return the virtual page number of the specified TLB entry, without
+	 * copying the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the virtual page number of the entry.
+	 */
+	public int getTLBVpn(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].vpn;
+	}
+
+	/**
+	 * Return the physical page number of the specified TLB entry, without
+	 * copying the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the physical page number of the entry.
+	 */
+	public int getTLBPpn(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].ppn;
+	}
+
+	/**
+	 * Return the address-space identifier the specified TLB entry was filled
+	 * under.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the address-space identifier of the entry.
+	 */
+	public int getTLBASID(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return tlbAsids[number];
+	}
+
+	/**
+	 * Return the flags of the specified TLB entry, without copying the entry.
+	 * 
+	 * @param number the index into the TLB.
+	 * @return the <tt>TranslationEntry.flag<i>*</i></tt> bits of the entry.
+	 */
+	public int getTLBFlags(int number) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+
+		return translations[number].getFlags();
+	}
+
 	/**
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * By default the TLB is fully associative, so the location of an entry
+	 * within the TLB does not affect anything. If the TLB is set associative,
+	 * a translation for <i>vpn</i> is only found if it is written to an entry
+	 * of set <tt>getTLBSet(vpn)</tt>. The entry is tagged with the current
+	 * address-space identifier.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -213,7 +497,181 @@ public final class Processor {
 		Lib.assertTrue(usingTLB);
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
-		translations[number] = new TranslationEntry(entry);
+		setTLBEntry(number, entry.vpn, entry.ppn, entry.getFlags());
+	}
+
+	/**
+	 * Fill the specified TLB entry in place. This is equivalent to
+	 * <tt>writeTLBEntry()</tt>, but does not allocate.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page number.
+	 * @param flags the <tt>TranslationEntry.flag<i>*</i></tt> bits.
+	 */
+	public void setTLBEntry(int number, int vpn, int ppn, int flags) {
+		setTLBEntry(number, currentAsid, vpn, ppn, flags);
+	}
+
+	/**
+	 * Fill the specified TLB entry in place, tagging it with the specified
+	 * address-space identifier instead of the current one.
+	 * 
+	 * @param number the index into the TLB.
+	 * @param asid the address-space identifier.
+	 * @param vpn the virtual page number.
+	 * @param ppn the physical page number.
+	 * @param flags the <tt>TranslationEntry.flag<i>*</i></tt> bits.
+	 */
+	public void setTLBEntry(int number, int asid, int vpn, int ppn, int flags) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(number >= 0 && number < tlbSize);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		TranslationEntry entry = translations[number];
+		tlbAsids[number] = asid;
+
+		if (tlbBuckets != null && entry.vpn != vpn) {
+			unhashTLBEntry(number);
+			entry.vpn = vpn;
+			hashTLBEntry(number);
+		}
+		else {
+			entry.vpn = vpn;
+		}
+
+		entry.ppn = ppn;
+		entry.setFlags(flags);
+	}
+
+	/**
+	 * Clear the valid bit of every TLB entry.
+	 */
+	public void invalidateTLB() {
+		Lib.assertTrue(usingTLB);
+
+		for (int i = 0; i < tlbSize; i++)
+			translations[i].valid = false;
+	}
+
+	/**
+	 * Clear the valid bit of every TLB entry tagged with the specified
+	 * address-space identifier, before the identifier is given to another
+	 * address space.
+	 * 
+	 * @param asid the address-space identifier.
+	 */
+	public void invalidateTLB(int asid) {
+		Lib.assertTrue(usingTLB);
+		Lib.assertTrue(asid >= 0 && asid < numASIDs);
+
+		for (int i = 0; i < tlbSize; i++) {
+			if (tlbAsids[i] == asid)
+				translations[i].valid = false;
+		}
+	}
+
+	/**
+	 * Send a TLB shootdown interrupt to this processor. The interrupt arrives
+	 * <tt>Stats.InterprocessorTime</tt> ticks later, and this processor may
+	 * keep using its TLB until then. When it arrives, <i>handler</i> is
+	 * called first, so that the kernel can save the used and dirty bits of
+	 * this processor's TLB entries, and then every entry that maps the
+	 * specified physical page is invalidated.
+	 * 
+	 * @param ppn the physical page that is being remapped.
+	 * @param handler the kernel's shootdown interrupt handler, or
+	 * <tt>null</tt>.
+	 */
+	public void sendShootdown(final int ppn, final Runnable handler) {
+		Lib.assertTrue(usingTLB);
+
+		privilege.interrupt.schedule(Stats.InterprocessorTime,
+				"TLB shootdown", new Runnable() {
+					public void run() {
+						if (handler != null)
+							handler.run();
+						shootdownTLB(ppn);
+					}
+				});
+	}
+
+	private void shootdownTLB(int ppn) {
+		numShootdowns++;
+
+		for (int i = 0; i < tlbSize; i++) {
+			if (translations[i].ppn == ppn)
+				translations[i].valid = false;
+		}
+	}
+
+	/**
+	 * Return the number of TLB shootdowns this processor has received.
+	 * 
+	 * @return the number of shootdown interrupts that have arrived.
+	 */
+	public long getNumShootdowns() {
+		return numShootdowns;
+	}
+
+	/**
+	 * Link a TLB entry into the hash chain for its virtual page number.
+	 */
+	private void hashTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		tlbChain[number] = tlbBuckets[bucket];
+		tlbBuckets[bucket] = number;
+	}
+
+	/**
+	 * Unlink a TLB entry from the hash chain for its virtual page number.
+	 */
+	private void unhashTLBEntry(int number) {
+		int bucket = translations[number].vpn & (tlbBuckets.length - 1);
+
+		if (tlbBuckets[bucket] == number) {
+			tlbBuckets[bucket] = tlbChain[number];
+			return;
+		}
+
+		int i = tlbBuckets[bucket];
+		while (tlbChain[i] != number)
+			i = tlbChain[i];
+		tlbChain[i] = tlbChain[number];
+	}
+
+	/**
+	 * Find the TLB entry translating the specified virtual page in the current
+	 * address space. If more than one valid entry matches, the lowest numbered
+	 * one is used, just as a linear search of the TLB would find.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the matching entry, or <tt>null</tt> if the TLB misses.
+	 */
+	private TranslationEntry lookupTLB(int vpn) {
+		int found = -1;
+
+		if (tlbBuckets != null) {
+			for (int i = tlbBuckets[vpn & (tlbBuckets.length - 1)]; i != -1; i = tlbChain[i]) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& tlbAsids[i] == currentAsid
+						&& (found == -1 || i < found))
+					found = i;
+			}
+		}
+		else {
+			int first = (vpn % tlbSets) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				if (translations[i].valid && translations[i].vpn == vpn
+						&& tlbAsids[i] == currentAsid) {
+					found = i;
+					break;
+				}
+			}
+		}
+
+		return (found == -1) ? null : translations[found];
 	}
 
 	/**
@@ -290,7 +748,7 @@ public final class Processor {
 	 */
 	private int translate(int vaddr, int size, boolean writing)
 			throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
@@ -317,19 +775,16 @@ public final class Processor {
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB set for a matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
-				}
-			}
+			entry = lookupTLB(vpn);
 			if (entry == null) {
+				tlbMisses[vpn % tlbSets]++;
 				privilege.stats.numTLBMisses++;
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
 				throw new MipsException(exceptionTLBMiss, vaddr);
 			}
+			tlbHits[vpn % tlbSets]++;
 		}
 
 		// check if trying to write a read-only page
@@ -352,7 +807,7 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
 		return paddr;
 	}
@@ -367,7 +822,7 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
@@ -376,7 +831,7 @@ public final class Processor {
 		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				size);
 
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\t\tvalue read=0x"
 					+ Lib.toHexString(value, size * 2));
 
@@ -393,74 +848,278 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
+		if (tracing)
 			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size + ", value=0x"
 					+ Lib.toHexString(value, size * 2));
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
-	}
+		int paddr = translate(vaddr, size, true);
 
-	/**
-	 * Complete the in progress delayed load and scheduled a new one.
-	 * 
-	 * @param nextLoadTarget the target register of the new load.
-	 * @param nextLoadValue the value to be loaded into the new target.
-	 * @param nextLoadMask the mask specifying which bits in the new target are
-	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
-	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
-	 * written.
-	 */
-	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
-			int nextLoadMask) {
-		// complete previous delayed load, if not modifying r0
-		if (loadTarget != 0) {
-			int savedBits = registers[loadTarget] & ~loadMask;
-			int newBits = loadValue & loadMask;
-			registers[loadTarget] = savedBits | newBits;
-		}
+		// a store into a page of text invalidates its decoded instructions
+		if (decodeCache != null)
+			decodeCache[paddr / pageSize] = null;
+		if (blockCache != null)
+			blockCache[paddr / pageSize] = null;
 
-		// schedule next load
-		loadTarget = nextLoadTarget;
-		loadValue = nextLoadValue;
-		loadMask = nextLoadMask;
+		Lib.bytesFromInt(mainMemory, paddr, size, value);
 	}
 
 	/**
-	 * Advance the PC to the next instruction.
+	 * Fetch the instruction at the current PC and return its decoded form,
+	 * decoding it only if it is not already in the decoded-instruction cache.
 	 * 
 	 * <p>
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then add 4 to the value in the nextPC register. Same as
-	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
+	 * Each cached instruction is tagged with the word it was decoded from, so
+	 * a frame that the kernel refills through <tt>getMemory()</tt> (for
+	 * example, when a page is swapped in or a new program is loaded) is
+	 * detected without any explicit invalidation. Stores made by user code
+	 * drop the decoded instructions of the page they write.
 	 * 
-	 * <p>
-	 * Use after handling a syscall exception so that the processor will move on
-	 * to the next instruction.
+	 * @return the decoded instruction at the current PC.
+	 * @exception MipsException if a translation error occurred.
 	 */
-	public void advancePC() {
-		//System.out.println("Imoved on after syscall exception");
-		advancePC(registers[regNextPC] + 4);
+	private Instruction fetchDecoded() throws MipsException {
+		int paddr = translate(registers[regPC], 4, false);
+		int value = Lib.bytesToInt(mainMemory, paddr);
+
+		int ppn = paddr / pageSize;
+		Instruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new Instruction[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		Instruction inst = page[index];
+		if (inst == null || inst.value != value) {
+			inst = new Instruction();
+			inst.value = value;
+			inst.decodeFields();
+			page[index] = inst;
+		}
+
+		return inst;
 	}
 
 	/**
-	 * Transfer the contents of the nextPC register into the PC register, and
-	 * then write the nextPC register.
+	 * Run user code one instruction at a time, but only call <tt>tick()</tt>
+	 * for the instruction at which the next pending interrupt becomes due.
+	 * The instructions before it are charged to the simulated clock in bulk,
+	 * so interrupts occur at exactly the same simulated times as when ticking
+	 * after every instruction. Never returns.
 	 * 
-	 * @param nextPC the new value of the nextPC register.
+	 * @param cached <tt>true</tt> to execute instructions from the
+	 * decoded-instruction cache.
 	 */
-	private void advancePC(int nextPC) {
-		registers[regPC] = registers[regNextPC];
-		registers[regNextPC] = nextPC;
-	}
-
-	/** Caused by a syscall instruction. */
-	public static final int exceptionSyscall = 0;
+	private void runBatched(boolean cached) {
+		Instruction inst = new Instruction();
 
-	/** Caused by an access to an invalid virtual page. */
-	public static final int exceptionPageFault = 1;
+		while (true) {
+			long budget = privilege.interrupt.nextInterruptTime()
+					- privilege.stats.totalTicks;
+
+			long executed = 0;
+			try {
+				do {
+					if (cached)
+						fetchDecoded().runDecoded();
+					else
+						inst.run();
+				} while (++executed < budget);
+
+				privilege.interrupt.addUserTicks(executed - 1);
+			}
+			catch (MipsException e) {
+				privilege.interrupt.addUserTicks(executed);
+				e.handle();
+			}
+
+			privilege.interrupt.tick(false);
+		}
+	}
+
+	/**
+	 * Run user code one basic block at a time, checking for interrupts once
+	 * per block instead of once per instruction. Never returns.
+	 * 
+	 * <p>
+	 * A block is only run to completion if no pending interrupt can become due
+	 * before its last instruction; otherwise it is cut short at the point where
+	 * the interrupt would have fired. All but the last instruction of a block
+	 * are charged to the simulated clock in bulk, and the last one goes
+	 * through <tt>tick()</tt>, so interrupts occur at exactly the same
+	 * simulated times as when executing one instruction at a time.
+	 */
+	private void runBlocks() {
+		BasicBlock previous = null;
+
+		while (true) {
+			try {
+				previous = runBlock(previous);
+			}
+			catch (MipsException e) {
+				previous = null;
+				e.handle();
+			}
+
+			privilege.interrupt.tick(false);
+		}
+	}
+
+	/**
+	 * Execute the basic block at the current PC.
+	 * 
+	 * @param previous the block that ran before this one to completion, or
+	 * <tt>null</tt> if there is none.
+	 * @return this block, or <tt>null</tt> if it did not run to completion.
+	 * @exception MipsException if an instruction in the block caused an
+	 * exception. The instructions preceding it have already been charged.
+	 */
+	private BasicBlock runBlock(BasicBlock previous) throws MipsException {
+		int vaddr = registers[regPC];
+
+		// fetching the first instruction also checks the whole page
+		int paddr = translate(vaddr, 4, false);
+
+		int ppn = paddr / pageSize;
+
+		BasicBlock block = null;
+		if (previous != null)
+			block = previous.successor(paddr);
+		if (block == null || block.page != blockCache[ppn]
+				|| !block.isCurrent()) {
+			block = findBlock(paddr);
+			if (previous != null)
+				previous.link(block);
+		}
+
+		// compile the block once it has proven to be hot
+		if (block.ops == null && compileThreshold > 0
+				&& ++block.runCount >= compileThreshold)
+			block.compile();
+
+		CompiledOp[] ops = block.ops;
+
+		int limit = block.insts.length;
+		long budget = privilege.interrupt.nextInterruptTime()
+				- privilege.stats.totalTicks;
+		if (budget < limit)
+			limit = (int) Math.max(budget, 1);
+
+		int executed = 0;
+		try {
+			while (executed < limit) {
+				if (ops != null)
+					ops[executed].run();
+				else
+					block.insts[executed].runDecoded();
+				executed++;
+
+				// stop at a taken branch, if the kernel moved the PC, or if a
+				// store overwrote the page this block came from
+				if (registers[regPC] != vaddr + executed * 4
+						|| blockCache[ppn] != block.page)
+					break;
+			}
+		}
+		catch (MipsException e) {
+			privilege.interrupt.addUserTicks(executed);
+			throw e;
+		}
+
+		privilege.interrupt.addUserTicks(executed - 1);
+
+		if (executed < block.insts.length)
+			return null;
+
+		return block;
+	}
+
+	/**
+	 * Return the basic block starting at the specified physical address,
+	 * building it if it is not cached or if memory has changed beneath it.
+	 * 
+	 * @param paddr the physical address of the first instruction.
+	 * @return the basic block starting at <i>paddr</i>.
+	 */
+	private BasicBlock findBlock(int paddr) {
+		int ppn = paddr / pageSize;
+		BasicBlock[] page = blockCache[ppn];
+		if (page == null) {
+			page = new BasicBlock[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+		BasicBlock block = page[index];
+		if (block == null || !block.isCurrent()) {
+			block = new BasicBlock(paddr, page);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
+	/**
+	 * Complete the in progress delayed load and scheduled a new one.
+	 * 
+	 * @param nextLoadTarget the target register of the new load.
+	 * @param nextLoadValue the value to be loaded into the new target.
+	 * @param nextLoadMask the mask specifying which bits in the new target are
+	 * to be overwritten. If a bit in <tt>nextLoadMask</tt> is 0, then the
+	 * corresponding bit of register <tt>nextLoadTarget</tt> will not be
+	 * written.
+	 */
+	private void delayedLoad(int nextLoadTarget, int nextLoadValue,
+			int nextLoadMask) {
+		// complete previous delayed load, if not modifying r0
+		if (loadTarget != 0) {
+			int savedBits = registers[loadTarget] & ~loadMask;
+			int newBits = loadValue & loadMask;
+			registers[loadTarget] = savedBits | newBits;
+		}
+
+		// schedule next load
+		loadTarget = nextLoadTarget;
+		loadValue = nextLoadValue;
+		loadMask = nextLoadMask;
+	}
+
+	/**
+	 * Advance the PC to the next instruction.
+	 * 
+	 * <p>
+	 * Transfer the contents of the nextPC register into the PC register, and
+	 * then add 4 to the value in the nextPC register. Same as
+	 * <tt>advancePC(readRegister(regNextPC)+4)</tt>.
+	 * 
+	 * <p>
+	 * Use after handling a syscall exception so that the processor will move on
+	 * to the next instruction.
+	 */
+	public void advancePC() {
+		//System.out.println("Imoved on after syscall exception");
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Transfer the contents of the nextPC register into the PC register, and
+	 * then write the nextPC register.
+	 * 
+	 * @param nextPC the new value of the nextPC register.
+	 */
+	private void advancePC(int nextPC) {
+		registers[regPC] = registers[regNextPC];
+		registers[regNextPC] = nextPC;
+	}
+
+	/** Caused by a syscall instruction. */
+	public static final int exceptionSyscall = 0;
+
+	/** Caused by an access to an invalid virtual page. */
+	public static final int exceptionPageFault = 1;
 
 	/** Caused by an access to a virtual page not mapped by any TLB entry. */
 	public static final int exceptionTLBMiss = 2;
@@ -533,6 +1192,18 @@ public final class Processor {
 	/** Provides privilege to this processor. */
 	private Privilege privilege;
 
+	/** Lets the interrupt controller flush this processor's pipeline. */
+	Privilege.ProcessorPrivilege processorPrivilege;
+
+	/** The number of this processor. */
+	private int id;
+
+	/** TLB shootdowns received by this processor. */
+	private long numShootdowns = 0;
+
+	/** The time at which this processor stopped executing. */
+	long time = 0;
+
 	/** MIPS registers accessible to the kernel. */
 	private int registers[] = new int[numUserRegisters];
 
@@ -551,6 +1222,45 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays;
+
+	/** Number of address-space identifiers. */
+	private int numASIDs = 64;
+
+	/** The address-space identifier each TLB entry was filled under. */
+	private int[] tlbAsids;
+
+	/** The current address-space identifier. */
+	private int currentAsid = 0;
+
+	/** Number of sets in the TLB. */
+	private int tlbSets;
+
+	/** Translations that hit in each TLB set. */
+	private long[] tlbHits;
+
+	/** Translations that missed in each TLB set. */
+	private long[] tlbMisses;
+
+	/**
+	 * Head of the chain of TLB entries hashing to each bucket, or <tt>-1</tt>
+	 * if the bucket is empty. Only used when the TLB is fully associative.
+	 */
+	private int[] tlbBuckets;
+
+	/** Next TLB entry in the same hash chain, or <tt>-1</tt> at the end. */
+	private int[] tlbChain;
+
+	/** <tt>true</tt> if memory references are being traced. */
+	private boolean tracing;
+
+	/** <tt>true</tt> if each instruction is disassembled as it is fetched. */
+	private boolean disassemblingEach;
+
+	/** <tt>true</tt> if each instruction is disassembled once decoded. */
+	private boolean disassemblingDecoded;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
@@ -569,6 +1279,31 @@ public final class Processor {
 	/** Main memory for user programs. */
 	private byte[] mainMemory;
 
+	/**
+	 * Decoded instructions, indexed by physical page and then by word within
+	 * the page, or <tt>null</tt> if the cache is disabled. A page's array is
+	 * allocated the first time an instruction is fetched from it.
+	 */
+	private Instruction[][] decodeCache;
+
+	/**
+	 * Basic blocks, indexed by the physical page and word of their first
+	 * instruction, or <tt>null</tt> if basic-block execution is disabled.
+	 */
+	private BasicBlock[][] blockCache;
+
+	/**
+	 * The number of times a basic block must run before it is compiled, or 0
+	 * if blocks are never compiled.
+	 */
+	private int compileThreshold;
+
+	/**
+	 * <tt>true</tt> to charge instructions to the clock in bulk between
+	 * interrupts, instead of calling <tt>tick()</tt> after each one.
+	 */
+	private boolean batchTicks;
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -578,6 +1313,8 @@ public final class Processor {
 
 	private static final char dbgFullDisassemble = 'M';
 
+	private static final char dbgInt = 'i';
+
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
@@ -623,6 +1360,528 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * A run of straight-line instructions within one physical page. A block
+	 * ends with a branch or jump and its delay slot, with an instruction that
+	 * always raises an exception (such as <tt>syscall</tt>), or at the end of
+	 * the page. Blocks remember the blocks that last followed them, so that
+	 * loops do not need to look up the block cache.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr, BasicBlock[] page) {
+			this.paddr = paddr;
+			this.page = page;
+
+			int end = paddr - (paddr % pageSize) + pageSize;
+
+			Instruction[] scan = new Instruction[(end - paddr) / 4];
+			int length = 0;
+
+			for (int addr = paddr; addr < end; addr += 4) {
+				Instruction inst = decodeAt(addr);
+				scan[length++] = inst;
+
+				if (inst.test(Mips.BRANCH)) {
+					// include the delay slot, if it is on this page
+					if (addr + 4 < end)
+						scan[length++] = decodeAt(addr + 4);
+					break;
+				}
+
+				if (inst.operation == Mips.SYSCALL
+						|| inst.operation == Mips.UNIMPL
+						|| inst.operation == Mips.INVALID)
+					break;
+			}
+
+			insts = new Instruction[length];
+			System.arraycopy(scan, 0, insts, 0, length);
+		}
+
+		private Instruction decodeAt(int addr) {
+			Instruction inst = new Instruction();
+			inst.value = Lib.bytesToInt(mainMemory, addr);
+			inst.decodeFields();
+			return inst;
+		}
+
+		/**
+		 * Test whether memory still holds the instructions this block was
+		 * built from.
+		 */
+		boolean isCurrent() {
+			for (int i = 0; i < insts.length; i++) {
+				if (Lib.bytesToInt(mainMemory, paddr + i * 4) != insts[i].value)
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Return the linked successor starting at <i>paddr</i>, or
+		 * <tt>null</tt> if there is none.
+		 */
+		BasicBlock successor(int paddr) {
+			if (next != null && next.paddr == paddr)
+				return next;
+			if (alternate != null && alternate.paddr == paddr)
+				return alternate;
+
+			return null;
+		}
+
+		/**
+		 * Link a block that was found to follow this one, keeping the most
+		 * recent two (the taken and fall-through paths of a branch).
+		 */
+		void link(BasicBlock block) {
+			if (next != null && next.paddr != block.paddr)
+				alternate = next;
+
+			next = block;
+		}
+
+		/**
+		 * Replace the interpreted instructions of this block with compiled
+		 * ones.
+		 */
+		void compile() {
+			ops = new CompiledOp[insts.length];
+			for (int i = 0; i < insts.length; i++)
+				ops[i] = compileInstruction(insts[i]);
+		}
+
+		int paddr;
+
+		/** The number of times this block has been entered. */
+		int runCount = 0;
+
+		/**
+		 * The compiled form of <tt>insts</tt>, or <tt>null</tt> if this block
+		 * is not yet hot enough to be compiled.
+		 */
+		CompiledOp[] ops = null;
+
+		/** The block cache page this block was entered in. */
+		BasicBlock[] page;
+
+		Instruction[] insts;
+
+		BasicBlock next, alternate;
+	}
+
+	/**
+	 * Translate a decoded instruction into an operation specialized for its
+	 * opcode and operands. Instructions that are rare, or whose semantics are
+	 * awkward to reproduce exactly (such as <tt>div</tt>, <tt>lwl</tt>, and
+	 * the trapping forms of <tt>add</tt>), are left to the interpreter.
+	 * 
+	 * @param inst the decoded instruction.
+	 * @return the compiled instruction.
+	 */
+	private CompiledOp compileInstruction(Instruction inst) {
+		switch (inst.operation) {
+		case Mips.ADD:
+			if (inst.test(Mips.OVERFLOW))
+				break;
+			if (inst.test(Mips.SRC2IMM))
+				return new AddImmediateOp(inst);
+			return new RegisterOp(inst);
+
+		case Mips.SUB:
+			if (inst.test(Mips.OVERFLOW))
+				break;
+			return new RegisterOp(inst);
+
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.XOR:
+			if (inst.test(Mips.SRC2IMM))
+				return new ImmediateOp(inst);
+			return new RegisterOp(inst);
+
+		case Mips.NOR:
+		case Mips.MFLO:
+		case Mips.MFHI:
+			return new RegisterOp(inst);
+
+		case Mips.LUI:
+			return new ImmediateOp(inst);
+
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+			return new ShiftOp(inst);
+
+		case Mips.SLT:
+			return new SetLessThanOp(inst);
+
+		case Mips.MULT:
+			return new MultiplyOp(inst);
+
+		case Mips.LOAD:
+			return new LoadOp(inst);
+
+		case Mips.STORE:
+			return new StoreOp(inst);
+
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			if (inst.test(Mips.LINK))
+				break;
+			return new BranchOp(inst);
+
+		case Mips.JUMP:
+			return new JumpOp(inst);
+		}
+
+		return new InterpretedOp(inst);
+	}
+
+	/**
+	 * One instruction of a compiled basic block. Like an interpreted
+	 * instruction, a compiled instruction reads its operands before completing
+	 * the previous delayed load, raises exceptions before changing any state,
+	 * and leaves the PC pointing at the next instruction to execute.
+	 */
+	private abstract class CompiledOp {
+		abstract void run() throws MipsException;
+
+		/**
+		 * Complete the previous delayed load, write the result of this
+		 * instruction, and advance the PC to the next sequential instruction.
+		 */
+		final void retire(int dstReg, int value) {
+			finishLoad();
+
+			if (dstReg != 0)
+				registers[dstReg] = value;
+
+			advancePC(registers[regNextPC] + 4);
+		}
+	}
+
+	private class InterpretedOp extends CompiledOp {
+		InterpretedOp(Instruction inst) {
+			this.inst = inst;
+		}
+
+		void run() throws MipsException {
+			inst.runDecoded();
+		}
+
+		private final Instruction inst;
+	}
+
+	/** <tt>addiu</tt>. */
+	private class AddImmediateOp extends CompiledOp {
+		AddImmediateOp(Instruction inst) {
+			rs = inst.rs;
+			imm = inst.imm;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			retire(dstReg, registers[rs] + imm);
+		}
+
+		private final int rs, imm, dstReg;
+	}
+
+	/** <tt>andi</tt>, <tt>ori</tt>, <tt>xori</tt>, and <tt>lui</tt>. */
+	private class ImmediateOp extends CompiledOp {
+		ImmediateOp(Instruction inst) {
+			operation = inst.operation;
+			rs = inst.rs;
+			imm = inst.imm;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			int value;
+
+			switch (operation) {
+			case Mips.AND:
+				value = registers[rs] & imm;
+				break;
+			case Mips.OR:
+				value = registers[rs] | imm;
+				break;
+			case Mips.XOR:
+				value = registers[rs] ^ imm;
+				break;
+			default:
+				value = imm << 16;
+				break;
+			}
+
+			retire(dstReg, value);
+		}
+
+		private final int operation, rs, imm, dstReg;
+	}
+
+	/**
+	 * <tt>addu</tt>, <tt>subu</tt>, <tt>and</tt>, <tt>or</tt>, <tt>xor</tt>,
+	 * <tt>nor</tt>, <tt>mflo</tt>, and <tt>mfhi</tt>.
+	 */
+	private class RegisterOp extends CompiledOp {
+		RegisterOp(Instruction inst) {
+			operation = inst.operation;
+			rs = inst.rs;
+			rt = inst.rt;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			int value;
+
+			switch (operation) {
+			case Mips.ADD:
+				value = registers[rs] + registers[rt];
+				break;
+			case Mips.SUB:
+				value = registers[rs] - registers[rt];
+				break;
+			case Mips.AND:
+				value = registers[rs] & registers[rt];
+				break;
+			case Mips.OR:
+				value = registers[rs] | registers[rt];
+				break;
+			case Mips.XOR:
+				value = registers[rs] ^ registers[rt];
+				break;
+			case Mips.NOR:
+				value = ~(registers[rs] | registers[rt]);
+				break;
+			case Mips.MFLO:
+				value = registers[regLo];
+				break;
+			default:
+				value = registers[regHi];
+				break;
+			}
+
+			retire(dstReg, value);
+		}
+
+		private final int operation, rs, rt, dstReg;
+	}
+
+	/**
+	 * <tt>sll</tt>, <tt>sra</tt>, <tt>srl</tt>, and their variable forms.
+	 * The logical right shift is done on the sign-extended 64-bit value, as
+	 * the interpreter does.
+	 */
+	private class ShiftOp extends CompiledOp {
+		ShiftOp(Instruction inst) {
+			operation = inst.operation;
+			variable = !inst.test(Mips.SRC1SH);
+			sh = inst.sh;
+			rs = inst.rs;
+			rt = inst.rt;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			int amount = (variable ? registers[rs] : sh) & 0x1F;
+			long src = registers[rt];
+			int value;
+
+			switch (operation) {
+			case Mips.SLL:
+				value = (int) (src << amount);
+				break;
+			case Mips.SRA:
+				value = (int) (src >> amount);
+				break;
+			default:
+				value = (int) (src >>> amount);
+				break;
+			}
+
+			retire(dstReg, value);
+		}
+
+		private final int operation, sh, rs, rt, dstReg;
+
+		private final boolean variable;
+	}
+
+	/** <tt>slt</tt>, <tt>sltu</tt>, <tt>slti</tt>, and <tt>sltiu</tt>. */
+	private class SetLessThanOp extends CompiledOp {
+		SetLessThanOp(Instruction inst) {
+			immediate = inst.test(Mips.SRC2IMM);
+			mask = inst.test(Mips.UNSIGNED) ? 0xFFFFFFFFL : -1L;
+			rs = inst.rs;
+			rt = inst.rt;
+			imm = inst.imm;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			long src1 = registers[rs] & mask;
+			long src2 = (immediate ? imm : registers[rt]) & mask;
+
+			retire(dstReg, (src1 < src2) ? 1 : 0);
+		}
+
+		private final boolean immediate;
+
+		private final long mask;
+
+		private final int rs, rt, imm, dstReg;
+	}
+
+	/** <tt>mult</tt> and <tt>multu</tt>. */
+	private class MultiplyOp extends CompiledOp {
+		MultiplyOp(Instruction inst) {
+			mask = inst.test(Mips.UNSIGNED) ? 0xFFFFFFFFL : -1L;
+			rs = inst.rs;
+			rt = inst.rt;
+		}
+
+		void run() {
+			long product = (registers[rs] & mask) * (registers[rt] & mask);
+
+			registers[regLo] = (int) product;
+			registers[regHi] = (int) (product >> 32);
+
+			retire(0, 0);
+		}
+
+		private final long mask;
+
+		private final int rs, rt;
+	}
+
+	/** <tt>lb</tt>, <tt>lbu</tt>, <tt>lh</tt>, <tt>lhu</tt>, and <tt>lw</tt>. */
+	private class LoadOp extends CompiledOp {
+		LoadOp(Instruction inst) {
+			extend = !inst.test(Mips.UNSIGNED);
+			size = inst.size;
+			rs = inst.rs;
+			imm = inst.imm;
+			dstReg = inst.dstReg;
+		}
+
+		void run() throws MipsException {
+			int value = readMem(registers[rs] + imm, size);
+
+			if (extend)
+				value = Lib.extend(value, 0, size * 8);
+
+			delayedLoad(dstReg, value, 0xFFFFFFFF);
+			advancePC(registers[regNextPC] + 4);
+		}
+
+		private final boolean extend;
+
+		private final int size, rs, imm, dstReg;
+	}
+
+	/** <tt>sb</tt>, <tt>sh</tt>, and <tt>sw</tt>. */
+	private class StoreOp extends CompiledOp {
+		StoreOp(Instruction inst) {
+			size = inst.size;
+			rs = inst.rs;
+			rt = inst.rt;
+			imm = inst.imm;
+		}
+
+		void run() throws MipsException {
+			writeMem(registers[rs] + imm, size, registers[rt]);
+
+			retire(0, 0);
+		}
+
+		private final int size, rs, rt, imm;
+	}
+
+	/**
+	 * <tt>beq</tt>, <tt>bne</tt>, <tt>blez</tt>, <tt>bgtz</tt>, <tt>bltz</tt>,
+	 * and <tt>bgez</tt>.
+	 */
+	private class BranchOp extends CompiledOp {
+		BranchOp(Instruction inst) {
+			operation = inst.operation;
+			rs = inst.rs;
+			rt = inst.rt;
+			branchOffset = inst.branchOffset;
+		}
+
+		void run() {
+			int src1 = registers[rs];
+			boolean taken;
+
+			switch (operation) {
+			case Mips.BEQ:
+				taken = (src1 == registers[rt]);
+				break;
+			case Mips.BNE:
+				taken = (src1 != registers[rt]);
+				break;
+			case Mips.BLEZ:
+				taken = (src1 <= 0);
+				break;
+			case Mips.BGTZ:
+				taken = (src1 > 0);
+				break;
+			case Mips.BLTZ:
+				taken = (src1 < 0);
+				break;
+			default:
+				taken = (src1 >= 0);
+				break;
+			}
+
+			int nextPC = registers[regNextPC];
+
+			finishLoad();
+			advancePC(taken ? nextPC + branchOffset : nextPC + 4);
+		}
+
+		private final int operation, rs, rt, branchOffset;
+	}
+
+	/** <tt>j</tt>, <tt>jal</tt>, <tt>jr</tt>, and <tt>jalr</tt>. */
+	private class JumpOp extends CompiledOp {
+		JumpOp(Instruction inst) {
+			register = (inst.format == Mips.RFMT);
+			link = inst.test(Mips.LINK);
+			rs = inst.rs;
+			target = inst.target << 2;
+			dstReg = inst.dstReg;
+		}
+
+		void run() {
+			int nextPC = registers[regNextPC];
+			int jtarget;
+
+			if (register)
+				jtarget = registers[rs];
+			else
+				jtarget = (nextPC & 0xF0000000) | target;
+
+			finishLoad();
+
+			if (link && dstReg != 0)
+				registers[dstReg] = nextPC + 4;
+
+			advancePC(jtarget);
+		}
+
+		private final boolean register, link;
+
+		private final int rs, target, dstReg;
+	}
+
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
@@ -632,13 +1891,22 @@ public final class Processor {
 			writeBack();
 		}
 
+		/**
+		 * Execute this instruction, which has already been fetched and had
+		 * its fields decoded by <tt>decodeFields()</tt>.
+		 */
+		public void runDecoded() throws MipsException {
+			decodeOperands();
+			execute();
+			writeBack();
+		}
+
 		private boolean test(int flag) {
 			return Lib.test(flag, flags);
 		}
 
 		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (disassemblingEach)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -646,6 +1914,15 @@ public final class Processor {
 		}
 
 		private void decode() {
+			decodeFields();
+			decodeOperands();
+		}
+
+		/**
+		 * Decode the parts of this instruction that depend only on the
+		 * instruction word, and not on the contents of any register.
+		 */
+		private void decodeFields() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -673,9 +1950,6 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -686,9 +1960,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -699,21 +1970,36 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			// get the branch offset, from the sign-extended imm
+			branchOffset = imm << 2;
+
+			// get imm
+			if (test(Mips.UNSIGNED)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		/**
+		 * Decode the parts of this instruction that depend on the current
+		 * contents of the registers.
+		 */
+		private void decodeOperands() {
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
 			else if (format == Mips.IFMT)
-				jtarget = registers[regNextPC] + (imm << 2);
+				jtarget = registers[regNextPC] + branchOffset;
 			else if (format == Mips.JFMT)
 				jtarget = (registers[regNextPC] & 0xF0000000) | (target << 2);
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -739,8 +2025,7 @@ public final class Processor {
 		}
 
 		private void print() {
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (disassemblingDecoded)
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
@@ -856,8 +2141,7 @@ public final class Processor {
 				}
 			}
 
-			if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor)
-					&& !Lib.test(dbgFullDisassemble))
+			if (disassemblingDecoded)
 				System.out.print("\n");
 		}
 
@@ -1063,8 +2347,7 @@ public final class Processor {
 
 			advancePC(nextPC);
 
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
+			if (disassemblingEach)
 				System.out.print("\n");
 		}
 
@@ -1077,7 +2360,7 @@ public final class Processor {
 
 		int size;
 
-		int addr, nextPC, jtarget, dstReg;
+		int addr, nextPC, jtarget, dstReg, branchOffset;
 
 		long src1, src2, dst;
 
@@ -101,6 +101,12 @@ public final class Stats {
 	 */
 	public static final int NetworkTime = 100;
 
+	/**
+	 * The amount of simulated time required for an interrupt sent by one
+	 * processor to reach another.
+	 */
+	public static final int InterprocessorTime = 10;
+
 	/**
 	 * The mean amount of simulated time between timer interrupts.
 	 */
@@ -6,6 +6,8 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
 
 /**
@@ -39,6 +41,42 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		threadLimit = Config.getInteger("TCB.maxThreads", maxThreads);
+		Lib.assertTrue(threadLimit > 0);
+
+		String handoff = Config.getString("TCB.handoff", "monitor");
+		if (handoff.equals("park"))
+			parking = true;
+		else
+			Lib.assertTrue(handoff.equals("monitor"),
+					"unknown TCB.handoff: " + handoff);
+
+		poolSize = Config.getInteger("TCB.poolSize", 0);
+		int prewarm = Config.getInteger("TCB.prewarm", 0);
+		Lib.assertTrue(poolSize >= 0 && prewarm >= 0 && prewarm <= poolSize);
+
+		for (int i = 0; i < prewarm; i++)
+			carrierPool.add(new Carrier());
+	}
+
+	/**
+	 * Return the number of TCBs that started on a pooled carrier thread.
+	 * 
+	 * @return the number of carrier pool hits.
+	 */
+	public static long getPoolHits() {
+		return poolHits;
+	}
+
+	/**
+	 * Return the number of TCBs that needed a new carrier thread because the
+	 * pool was empty.
+	 * 
+	 * @return the number of carrier pool misses.
+	 */
+	public static long getPoolMisses() {
+		return poolMisses;
 	}
 
 	/**
@@ -68,7 +106,7 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
+		Lib.assertTrue(runningThreads.size() < threadLimit);
 
 		isFirstTCB = (currentTCB == null);
 
@@ -89,7 +127,29 @@ public final class TCB {
 
 		this.target = target;
 
-		if (!isFirstTCB) {
+		if (!isFirstTCB && poolSize > 0) {
+			/*
+			 * Run this TCB on a parked carrier thread if there is one, and
+			 * otherwise on a new one. Either way we wait for threadroot() to
+			 * wake us up, just as below.
+			 */
+			if (carrierPool.isEmpty()) {
+				poolMisses++;
+				carrier = new Carrier();
+			}
+			else {
+				poolHits++;
+				carrier = carrierPool.remove(carrierPool.size() - 1);
+			}
+
+			javaThread = carrier.thread;
+
+			currentTCB.running = false;
+
+			carrier.assign(this);
+			currentTCB.waitForInterrupt();
+		}
+		else if (!isFirstTCB) {
 			/*
 			 * If this is not the first TCB, we have to make a new Java thread
 			 * to run it. Creating Java threads is a privileged operation.
@@ -283,6 +343,16 @@ public final class TCB {
 		waitForInterrupt();
 
 		if (done) {
+			/*
+			 * Park our carrier before waking up destroy(), which may hand it
+			 * a new TCB straight away. Nothing else can touch the pool until
+			 * then.
+			 */
+			if (carrier != null && carrierPool.size() < poolSize) {
+				carrier.pooled = true;
+				carrierPool.add(carrier);
+			}
+
 			currentTCB.interrupt();
 			throw new ThreadDeath();
 		}
@@ -291,14 +361,25 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>,
+	 * either parked or on the monitor bound to this TCB.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting
+	 * and destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
 	 */
-	private synchronized void waitForInterrupt() {
+	private void waitForInterrupt() {
+		if (parking) {
+			while (!running)
+				LockSupport.park(this);
+		}
+		else {
+			waitOnMonitor();
+		}
+	}
+
+	private synchronized void waitOnMonitor() {
 		while (!running) {
 			try {
 				wait();
@@ -310,11 +391,21 @@ public final class TCB {
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and either unparking its thread or signalling the monitor bound to it.
+	 * Used in the ping-pong process of starting and destroying TCBs, as well
+	 * as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
+		if (parking) {
+			running = true;
+			LockSupport.unpark(javaThread);
+		}
+		else {
+			notifyMonitor();
+		}
+	}
+
+	private synchronized void notifyMonitor() {
 		running = true;
 		notify();
 	}
@@ -346,6 +437,20 @@ public final class TCB {
 	 */
 	public static final int maxThreads = 250;
 
+	/**
+	 * The limit actually enforced on started, non-destroyed TCBs. Set by
+	 * <tt>TCB.maxThreads</tt>, and defaults to <tt>maxThreads</tt>.
+	 */
+	private static int threadLimit = maxThreads;
+
+	/**
+	 * <tt>true</tt> if TCBs hand off the processor with
+	 * <tt>LockSupport.park()</tt> and <tt>unpark()</tt>, selected by
+	 * <tt>TCB.handoff = park</tt>. Otherwise they wait on and notify their own
+	 * monitors.
+	 */
+	private static boolean parking = false;
+
 	/**
 	 * A reference to the currently running TCB. It is initialized to
 	 * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -402,8 +507,12 @@ public final class TCB {
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
+	 * 
+	 * <p>
+	 * This is volatile because, with <tt>TCB.handoff = park</tt>, it is the
+	 * only thing the waking and the woken thread synchronize on.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -420,6 +529,74 @@ public final class TCB {
 
 	private Runnable tcbTarget;
 
+	/** The pooled carrier thread running this TCB, if any. */
+	private Carrier carrier = null;
+
+	/**
+	 * The maximum number of idle carrier threads to keep, set by
+	 * <tt>TCB.poolSize</tt>. If <tt>0</tt>, every TCB gets its own Java
+	 * thread, which exits when the TCB is destroyed.
+	 */
+	private static int poolSize = 0;
+
+	/**
+	 * Idle carrier threads. Only touched by the running TCB, or by a TCB
+	 * being destroyed while the TCB destroying it waits.
+	 */
+	private static ArrayList<Carrier> carrierPool = new ArrayList<Carrier>();
+
+	private static long poolHits = 0;
+
+	private static long poolMisses = 0;
+
+	/**
+	 * A Java thread that runs one TCB after another. Between TCBs it parks
+	 * until <tt>assign()</tt> gives it the next one.
+	 */
+	private static class Carrier implements Runnable {
+		Carrier() {
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					thread = new Thread(Carrier.this);
+				}
+			});
+
+			thread.start();
+		}
+
+		void assign(TCB tcb) {
+			assigned = tcb;
+			LockSupport.unpark(thread);
+		}
+
+		public void run() {
+			while (true) {
+				TCB tcb;
+				while ((tcb = assigned) == null)
+					LockSupport.park(this);
+				assigned = null;
+
+				tcb.threadroot();
+
+				// we may already have been assigned the next TCB
+				if (!pooled)
+					return;
+				pooled = false;
+			}
+		}
+
+		Thread thread;
+
+		/** The next TCB to run, handed over by <tt>assign()</tt>. */
+		private volatile TCB assigned = null;
+
+		/**
+		 * Set by the last TCB to run here if it returned us to the pool. Only
+		 * ever accessed from this carrier's own thread.
+		 */
+		private boolean pooled = false;
+	}
+
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
 			Lib.assertTrue(currentTCB != null);
@@ -50,6 +50,42 @@ public final class TranslationEntry {
 		dirty = entry.dirty;
 	}
 
+	/**
+	 * Return the valid, read-only, used and dirty bits of this entry packed
+	 * into a single word of <tt>flag<i>*</i></tt> bits.
+	 * 
+	 * @return the flags of this entry.
+	 */
+	public int getFlags() {
+		return (valid ? flagValid : 0) | (readOnly ? flagReadOnly : 0)
+				| (used ? flagUsed : 0) | (dirty ? flagDirty : 0);
+	}
+
+	/**
+	 * Set the valid, read-only, used and dirty bits of this entry from a word
+	 * of <tt>flag<i>*</i></tt> bits.
+	 * 
+	 * @param flags the new flags of this entry.
+	 */
+	public void setFlags(int flags) {
+		valid = (flags & flagValid) != 0;
+		readOnly = (flags & flagReadOnly) != 0;
+		used = (flags & flagUsed) != 0;
+		dirty = (flags & flagDirty) != 0;
+	}
+
+	/** Flag bit for <tt>valid</tt>. */
+	public static final int flagValid = 0x01;
+
+	/** Flag bit for <tt>readOnly</tt>. */
+	public static final int flagReadOnly = 0x02;
+
+	/** Flag bit for <tt>used</tt>. */
+	public static final int flagUsed = 0x04;
+
+	/** Flag bit for <tt>dirty</tt>. */
+	public static final int flagDirty = 0x08;
+
 	/** The virtual page number. */
 	public int vpn;
 
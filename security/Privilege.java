@@ -157,6 +157,24 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the simulated time at which the earliest pending interrupt
+		 * is due.
+		 * 
+		 * @return the time of the next pending interrupt, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long nextInterruptTime();
+
+		/**
+		 * Advance the simulated time by the specified number of user ticks,
+		 * without checking for pending interrupts. The caller must make sure
+		 * that no interrupt becomes due as a result.
+		 * 
+		 * @param ticks the number of user ticks to add.
+		 */
+		public void addUserTicks(long ticks);
 	}
 
 	/**
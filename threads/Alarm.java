@@ -1,19 +1,30 @@
 package nachos.threads;
 
-import java.util.PriorityQueue;
-import java.util.*; // added in to get Map 
-
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads are kept in a hierarchical timing wheel. Level <i>l</i>
+ * has 64 slots, each covering 64<sup><i>l</i></sup> ticks. A sleeper goes in
+ * the lowest level at which its wake time and the wheel's clock agree on all
+ * higher digits, in the slot for its own digit at that level. When the clock
+ * reaches a slot, its sleepers either wake, or move down to a lower level.
+ * Sleeping and waking each take constant time, and sleepers with the same wake
+ * time share a slot and are woken together. A bitmap of the occupied slots in
+ * each level lets the clock jump straight to the next one.
+ *
+ * <p>
+ * The same wheel holds callbacks scheduled with <tt>schedule()</tt>, so a
+ * timeout needs no thread of its own to wait for it.
  */
 public class Alarm {
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
 	 * alarm's callback.
-	 * 
+	 *
 	 * <p>
 	 * <b>Note</b>: Nachos will not function correctly with more than one alarm.
 	 */
@@ -27,54 +38,105 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes every thread
+	 * whose wake time has come, then causes the current thread to yield,
+	 * forcing a context switch if there is another thread that should be run,
+	 * if the scheduler asks for it.
 	 */
 	public void timerInterrupt() {
-		//check queue if thread is ready to wake up, check the wake time 
-		//loop through the times pq to compare the time and wake up the thread
-		Pair pair;
-		int counter = 0;
-		while(counter < pq.size()){
-			counter++;
-			if(pq.peek().l <= Machine.timer().getTime()){
-				pair = pq.poll();
-				pair.s.V();
-			}
-		}
+		advance(Machine.timer().getTime());
+
+		if (ThreadedKernel.scheduler.timerInterrupt())
+			KThread.yield();
 	}
 
 	/**
 	 * Put the current thread to sleep for at least <i>x</i> ticks, waking it up
 	 * in the timer interrupt handler. The thread must be woken up (placed in
 	 * the scheduler ready set) during the first timer interrupt where
-	 * 
+	 *
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
-	 * 
+	 *
 	 * @param x the minimum number of clock ticks to wait.
-	 * 
+	 *
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		// for now, cheat just to get something working (busy waiting is bad)
-		// busy waitingwhile (wakeTime > Machine.timer().getTime()){		}
-		s = new Semaphore(0);
-		//notes
-		//sleep in waituntil, wake up in timer interrupt
-		// timer interrupt will tick 500 times, check if threads need to be waken up
-		// never wake up current (main). make current threadsleep
-		if(x <= 0)
+		if (x <= 0)
 			return;
-		
-		long wakeTime = Machine.timer().getTime() + x; // block thread 
-		//that is calling waituntil
-		Pair p = new Pair(s, wakeTime);
-		pq.add(p); //stores waketime 
-		p.s.P(); //TODO: add s to the priority queue before calling P	
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long wakeTime = Machine.timer().getTime() + x;
+		if (wakeTime < 0)
+			wakeTime = Long.MAX_VALUE;
+
+		add(newSleeper(KThread.currentThread()), wakeTime);
+
+		KThread.sleep();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Run a callback in the timer interrupt handler, during the first timer
+	 * interrupt where
+	 *
+	 * <p>
+	 * <blockquote> (current time) >= <i>deadline</i> </blockquote>
+	 *
+	 * <p>
+	 * A deadline that has already passed is met by the next timer interrupt.
+	 * All callbacks due at an interrupt run together, in order of their
+	 * deadlines, after every due thread has been woken. They run with
+	 * interrupts disabled, so they must not block, but they may schedule or
+	 * cancel other callbacks.
+	 *
+	 * @param deadline the time to run the callback at.
+	 * @param callback the callback to run.
+	 * @return a handle with which to cancel the callback.
+	 *
+	 * @see nachos.machine.Timer#getTime()
+	 */
+	public Timeout schedule(long deadline, Runnable callback) {
+		Lib.assertTrue(callback != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = new Timeout();
+		timeout.callback = callback;
+		add(timeout, deadline);
+
+		Machine.interrupt().restore(intStatus);
+
+		return timeout;
+	}
+
+	/**
+	 * Return the number of callbacks that have run.
+	 *
+	 * @return the number of callbacks that have run.
+	 */
+	public long getNumFired() {
+		return numFired;
+	}
+
+	/**
+	 * Return the number of callbacks cancelled before they ran.
+	 *
+	 * @return the number of callbacks cancelled before they ran.
+	 */
+	public long getNumCancelled() {
+		return numCancelled;
 	}
-	
+
+	/**
+	 * Test that sleepers wake no earlier than asked, in order of their wake
+	 * times, including ones far enough out to start above the lowest level.
+	 * Meanwhile, check that callbacks with the same deadline run together,
+	 * and that a cancelled one never runs.
+	 */
 	public static void selfTest() {
 	    KThread t1 = new KThread(new Runnable() {
 	        public void run() {
@@ -90,56 +152,314 @@ public class Alarm {
 	    t1.setName("T1");
 	    t1.fork();
 	    t1.join();
+
+		final Alarm alarm = ThreadedKernel.alarm;
+		final long[] fired = new long[3];
+		long fired0 = alarm.getNumFired(), cancelled0 = alarm.getNumCancelled();
+
+		long deadline = Machine.timer().getTime() + 1000;
+		Timeout[] timeouts = new Timeout[fired.length];
+		for (int i = 0; i < fired.length; i++) {
+			final int which = i;
+			timeouts[i] = alarm.schedule(deadline + (i / 2) * 1000,
+					new Runnable() {
+						public void run() {
+							fired[which] = Machine.timer().getTime();
+						}
+					});
+		}
+		Lib.assertTrue(timeouts[2].cancel() && !timeouts[2].cancel());
+
+		final long[] waits = { 5000, 1000, 3000 };
+		final int[] order = new int[waits.length];
+		final int[] numWoken = { 0 };
+
+		KThread[] sleepers = new KThread[waits.length];
+		for (int i = 0; i < waits.length; i++) {
+			final int which = i;
+			sleepers[i] = new KThread(new Runnable() {
+				public void run() {
+					long wakeTime = Machine.timer().getTime() + waits[which];
+					ThreadedKernel.alarm.waitUntil(waits[which]);
+					Lib.assertTrue(Machine.timer().getTime() >= wakeTime,
+							" thread woke up too early.");
+					order[numWoken[0]++] = which;
+				}
+			}).setName("sleeper " + i);
+			sleepers[i].fork();
+		}
+		for (int i = 0; i < waits.length; i++)
+			sleepers[i].join();
+
+		Lib.assertTrue(order[0] == 1 && order[1] == 2 && order[2] == 0,
+				" threads woke up out of order.");
+
+		Lib.assertTrue(fired[0] >= deadline && fired[1] == fired[0]
+				&& fired[2] == 0, " callbacks ran at the wrong time.");
+		Lib.assertTrue(!timeouts[0].cancel() && !timeouts[0].isPending());
+		Lib.assertTrue(alarm.getNumFired() == fired0 + 2
+				&& alarm.getNumCancelled() == cancelled0 + 1);
 	}
-	
-	private class Pair implements Map.Entry<Semaphore, Long>{
-		
-		private Semaphore s;
-		private Long l;
-		
-		public Pair(Semaphore sema, Long value){
-			this.s = sema;
-			this.l = value;
+
+	/**
+	 * A thread or callback waiting in the wheel. The ones returned by
+	 * <tt>schedule()</tt> can be cancelled.
+	 */
+	public class Timeout {
+		private Timeout() {
 		}
-		
-		@Override
-		public Semaphore getKey() {
-			return s;
+
+		/**
+		 * Cancel this callback, if it has not run yet.
+		 *
+		 * @return <tt>true</tt> if the callback was cancelled before it ran.
+		 */
+		public boolean cancel() {
+			Lib.assertTrue(thread == null);
+
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean cancelled = pending;
+			if (pending) {
+				pending = false;
+				numCancelled++;
+
+				// once due, it is only skipped when its batch runs
+				if (index >= 0) {
+					unlink(this);
+					numPending--;
+				}
+			}
+
+			Machine.interrupt().restore(intStatus);
+
+			return cancelled;
 		}
 
-		@Override
-		public Long getValue() {
-			return l;
+		/**
+		 * Return <tt>true</tt> if this callback has neither run nor been
+		 * cancelled.
+		 *
+		 * @return <tt>true</tt> if this callback is still to run.
+		 */
+		public boolean isPending() {
+			return pending;
 		}
 
-		@Override
-		public Long setValue(Long value) {
-			Long waitTimeOld = this.l;
-			this.l = value;
-			return waitTimeOld;
+		/**
+		 * Return the time this callback is to run at.
+		 *
+		 * @return the deadline of this callback.
+		 */
+		public long getDeadline() {
+			return wakeTime;
 		}
-		
+
+		private KThread thread = null;
+		private Runnable callback = null;
+		private long wakeTime;
+		private boolean pending = false;
+
+		/** The index of this timeout's slot, or -1 if not in the wheel. */
+		private int index = -1;
+
+		/**
+		 * Neighbors in the same slot or batch. <tt>next</tt> also links the
+		 * pool.
+		 */
+		private Timeout prev = null, next = null;
+	}
+
+	/**
+	 * Put a timeout in the wheel. A wake time the clock has already reached
+	 * is moved to just after it.
+	 */
+	private void add(Timeout timeout, long wakeTime) {
+		timeout.wakeTime = Math.max(wakeTime, clock + 1);
+		timeout.pending = true;
+
+		insert(timeout);
+		numPending++;
+	}
+
+	/**
+	 * Put a timeout in the slot for its wake time, relative to the clock.
+	 */
+	private void insert(Timeout timeout) {
+		int level = (63 - Long.numberOfLeadingZeros(timeout.wakeTime ^ clock))
+				/ slotBits;
+		int slot = (int) (timeout.wakeTime >>> (level * slotBits)) & slotMask;
+		int index = level * numSlots + slot;
+
+		timeout.index = index;
+		timeout.prev = tails[index];
+		timeout.next = null;
+		if (tails[index] == null)
+			heads[index] = timeout;
+		else
+			tails[index].next = timeout;
+		tails[index] = timeout;
+
+		occupied[level] |= 1L << slot;
 	}
-	
-	private class wakeTimeComparator implements Comparator<Pair>{
-
-		@Override
-		public int compare(Pair p1, Pair p2) {
-			// TODO Auto-generated method stub
-			if(p1.l < p2.l){
-				return -1;
+
+	/**
+	 * Take a timeout out of its slot.
+	 */
+	private void unlink(Timeout timeout) {
+		int index = timeout.index;
+
+		if (timeout.prev == null)
+			heads[index] = timeout.next;
+		else
+			timeout.prev.next = timeout.next;
+
+		if (timeout.next == null)
+			tails[index] = timeout.prev;
+		else
+			timeout.next.prev = timeout.prev;
+
+		if (heads[index] == null)
+			occupied[index / numSlots] &= ~(1L << (index & slotMask));
+
+		timeout.prev = timeout.next = null;
+		timeout.index = -1;
+	}
+
+	/**
+	 * Move the clock forward to the specified time, moving timeouts down the
+	 * wheel as their slots are reached. Then wake every thread and run every
+	 * callback whose wake time the clock passed, as one batch.
+	 */
+	private void advance(long time) {
+		while (numPending > 0 && clock < time) {
+			// every sleeper is in a slot after the clock's digit at its level
+			int level, slot = 0;
+			for (level = 0; level < numLevels; level++) {
+				int digit = (int) (clock >>> (level * slotBits)) & slotMask;
+				long after = occupied[level] & (-2L << digit);
+				if (after != 0) {
+					slot = Long.numberOfTrailingZeros(after);
+					break;
+				}
+			}
+			Lib.assertTrue(level < numLevels);
+
+			int shift = level * slotBits;
+			long next = (clock >>> shift >>> slotBits << slotBits | slot) << shift;
+			if (next > time)
+				break;
+
+			clock = next;
+
+			int index = level * numSlots + slot;
+			Timeout timeout = heads[index];
+			heads[index] = tails[index] = null;
+			occupied[level] &= ~(1L << slot);
+
+			while (timeout != null) {
+				Timeout following = timeout.next;
+
+				if (timeout.wakeTime == clock) {
+					numPending--;
+
+					timeout.index = -1;
+					timeout.prev = batchTail;
+					timeout.next = null;
+					if (batchTail == null)
+						batchHead = timeout;
+					else
+						batchTail.next = timeout;
+					batchTail = timeout;
+				}
+				else {
+					insert(timeout);
+				}
+
+				timeout = following;
 			}
-			else if(p1.l > p2.l){
-				return 1;
+		}
+
+		clock = time;
+
+		while (batchHead != null) {
+			Timeout timeout = batchHead;
+			batchHead = timeout.next;
+			if (batchHead == null)
+				batchTail = null;
+			timeout.prev = timeout.next = null;
+
+			if (timeout.thread != null) {
+				timeout.thread.ready();
+				freeSleeper(timeout);
 			}
-			else{
-				return 0;
+			else if (timeout.pending) {
+				timeout.pending = false;
+				numFired++;
+				timeout.callback.run();
 			}
 		}
-		
 	}
-	
-    wakeTimeComparator comparator = new wakeTimeComparator();
-	private PriorityQueue<Pair> pq = new PriorityQueue<Pair>(1, comparator);
-	private static Semaphore s;
+
+	/**
+	 * Return a timeout that wakes the specified thread, reusing one that has
+	 * woken a thread before if possible. These never leave this class, so
+	 * reusing them is safe, unlike the handles returned by
+	 * <tt>schedule()</tt>.
+	 */
+	private Timeout newSleeper(KThread thread) {
+		Timeout sleeper = freeList;
+
+		if (sleeper == null)
+			sleeper = new Timeout();
+		else
+			freeList = sleeper.next;
+
+		sleeper.next = null;
+		sleeper.thread = thread;
+		return sleeper;
+	}
+
+	/**
+	 * Return a timeout that has woken its thread to the pool.
+	 */
+	private void freeSleeper(Timeout sleeper) {
+		sleeper.thread = null;
+		sleeper.pending = false;
+		sleeper.next = freeList;
+		freeList = sleeper;
+	}
+
+	private static final int slotBits = 6;
+	private static final int numSlots = 1 << slotBits;
+	private static final int slotMask = numSlots - 1;
+
+	/** Enough levels to hold any non-negative wake time. */
+	private static final int numLevels = (63 + slotBits - 1) / slotBits;
+
+	/** The first and last timeout in each slot, level by level. */
+	private Timeout[] heads = new Timeout[numLevels * numSlots];
+	private Timeout[] tails = new Timeout[numLevels * numSlots];
+
+	/**
+	 * Bit <i>s</i> of <tt>occupied[l]</tt> is set if slot <i>s</i> of level
+	 * <i>l</i> holds any timeouts.
+	 */
+	private long[] occupied = new long[numLevels];
+
+	/** The time up to which every due timeout has been taken out. */
+	private long clock = 0;
+
+	/** The number of timeouts in the wheel. */
+	private int numPending = 0;
+
+	/** Due timeouts, to be handled together once the clock is updated. */
+	private Timeout batchHead = null, batchTail = null;
+
+	/** Timeouts that have woken a thread, for reuse. */
+	private Timeout freeList = null;
+
+	private long numFired = 0;
+
+	private long numCancelled = 0;
 }
@@ -0,0 +1,379 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> carries 32-bit words from any number of sending threads to
+ * any number of receiving threads through a bounded buffer.
+ *
+ * <p>
+ * Unlike a <tt>Communicator</tt>, a sender does not wait for a receiver to
+ * take each word, only for room in the buffer, and both sides can move many
+ * words at a time. Words from a single <tt>send()</tt> are received in order,
+ * and are not interleaved with words from other senders unless the send has
+ * to wait for room partway through.
+ *
+ * <p>
+ * Threads that wait for room or for words are woken one at a time. A thread
+ * that leaves room or words behind it wakes the next waiting thread on the
+ * same side, so a wakeup is only paid for when there is work for the woken
+ * thread.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel, with a capacity read from
+	 * <tt>Channel.capacity</tt>.
+	 */
+	public Channel() {
+		this(Config.getInteger("Channel.capacity", 64));
+	}
+
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity the number of words the channel can hold.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+	}
+
+	/**
+	 * Send one word, waiting for room if the channel is full.
+	 *
+	 * @param word the word to send.
+	 */
+	public void send(int word) {
+		lock.acquire();
+
+		while (count == buffer.length)
+			waitForRoom();
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		signal();
+
+		lock.release();
+	}
+
+	/**
+	 * Send every word in an array, waiting for room as needed.
+	 *
+	 * @param words the words to send.
+	 */
+	public void send(int[] words) {
+		send(words, 0, words.length);
+	}
+
+	/**
+	 * Send <i>length</i> words from an array, starting at <i>offset</i>,
+	 * waiting for room as needed.
+	 *
+	 * @param words the array holding the words to send.
+	 * @param offset the index of the first word to send.
+	 * @param length the number of words to send.
+	 */
+	public void send(int[] words, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= words.length);
+
+		lock.acquire();
+
+		while (length > 0) {
+			while (count == buffer.length)
+				waitForRoom();
+
+			int amount = Math.min(length, buffer.length - count);
+			int tail = (head + count) % buffer.length;
+			int first = Math.min(amount, buffer.length - tail);
+
+			System.arraycopy(words, offset, buffer, tail, first);
+			System.arraycopy(words, offset + first, buffer, 0, amount - first);
+
+			count += amount;
+			offset += amount;
+			length -= amount;
+
+			signal();
+		}
+
+		lock.release();
+	}
+
+	/**
+	 * Receive one word, waiting for one if the channel is empty.
+	 *
+	 * @return the word received.
+	 */
+	public int receive() {
+		lock.acquire();
+
+		while (count == 0)
+			waitForWords();
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		signal();
+
+		lock.release();
+
+		return word;
+	}
+
+	/**
+	 * Receive as many words as are available, up to the length of an array,
+	 * waiting until there is at least one.
+	 *
+	 * @param buf the array to receive into.
+	 * @return the number of words received.
+	 */
+	public int receive(int[] buf) {
+		return receive(buf, 0, buf.length);
+	}
+
+	/**
+	 * Receive as many words as are available, up to <i>length</i>, into an
+	 * array starting at <i>offset</i>. Wait until there is at least one word,
+	 * unless <i>length</i> is 0.
+	 *
+	 * @param buf the array to receive into.
+	 * @param offset the index to store the first word at.
+	 * @param length the maximum number of words to receive.
+	 * @return the number of words received.
+	 */
+	public int receive(int[] buf, int offset, int length) {
+		Lib.assertTrue(offset >= 0 && length >= 0
+				&& offset + length <= buf.length);
+
+		if (length == 0)
+			return 0;
+
+		lock.acquire();
+
+		while (count == 0)
+			waitForWords();
+
+		int amount = Math.min(length, count);
+		int first = Math.min(amount, buffer.length - head);
+
+		System.arraycopy(buffer, head, buf, offset, first);
+		System.arraycopy(buffer, 0, buf, offset + first, amount - first);
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+
+		signal();
+
+		lock.release();
+
+		return amount;
+	}
+
+	private void waitForRoom() {
+		numSendersWaiting++;
+		roomAvailable.sleep();
+		numSendersWaiting--;
+	}
+
+	private void waitForWords() {
+		numReceiversWaiting++;
+		wordsAvailable.sleep();
+		numReceiversWaiting--;
+	}
+
+	/**
+	 * Wake one waiting sender if there is room, and one waiting receiver if
+	 * there are words. Each woken thread calls this again once it is done, so
+	 * the wakeups pass along only as far as there is something to do.
+	 */
+	private void signal() {
+		if (count < buffer.length && numSendersWaiting > 0)
+			roomAvailable.wake();
+		if (count > 0 && numReceiversWaiting > 0)
+			wordsAvailable.wake();
+	}
+
+	/**
+	 * Test ordering, wraparound and batches larger than the channel, then
+	 * several senders and receivers at once. If <tt>Channel.benchmark</tt> is
+	 * set, also compare a channel against a <tt>Communicator</tt>.
+	 */
+	public static void selfTest() {
+		final Channel channel = new Channel(4);
+		final int[] received = new int[10];
+
+		KThread receiver = new KThread(new Runnable() {
+			public void run() {
+				int total = 0;
+				while (total < received.length) {
+					total += channel.receive(received, total,
+							Math.min(3, received.length - total));
+				}
+			}
+		}).setName("channel receiver");
+
+		receiver.fork();
+		int[] words = new int[received.length];
+		for (int i = 0; i < words.length; i++)
+			words[i] = i * i;
+		channel.send(words);
+		receiver.join();
+
+		for (int i = 0; i < received.length; i++)
+			Lib.assertTrue(received[i] == i * i, "Channel reordered words.");
+
+		Lib.assertTrue(run(new Channel(4), 3, 2, 60, 5) == sum(60));
+
+		if (Config.getBoolean("Channel.benchmark", false))
+			benchmark();
+	}
+
+	private static long sum(int words) {
+		return (long) words * (words - 1) / 2;
+	}
+
+	/**
+	 * Send the words 0 to <i>words</i>-1 through a channel, split among a
+	 * number of senders and receivers that move up to <i>batch</i> words at a
+	 * time, and return the sum of the words received.
+	 */
+	private static long run(final Channel channel, int senders, int receivers,
+			final int words, final int batch) {
+		final long[] sums = new long[receivers];
+
+		KThread[] threads = new KThread[senders + receivers];
+		for (int i = 0; i < senders; i++) {
+			final int first = words * i / senders;
+			final int last = words * (i + 1) / senders;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					int[] buf = new int[batch];
+					for (int next = first; next < last;) {
+						int amount = Math.min(batch, last - next);
+						for (int j = 0; j < amount; j++)
+							buf[j] = next + j;
+						channel.send(buf, 0, amount);
+						next += amount;
+					}
+				}
+			}).setName("channel sender " + i);
+		}
+		for (int i = 0; i < receivers; i++) {
+			final int which = i;
+			final int quota = words * (i + 1) / receivers - words * i / receivers;
+			threads[senders + i] = new KThread(new Runnable() {
+				public void run() {
+					int[] buf = new int[batch];
+					for (int got = 0; got < quota;) {
+						int amount = channel.receive(buf, 0,
+								Math.min(batch, quota - got));
+						for (int j = 0; j < amount; j++)
+							sums[which] += buf[j];
+						got += amount;
+					}
+				}
+			}).setName("channel receiver " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long total = 0;
+		for (int i = 0; i < receivers; i++)
+			total += sums[i];
+		return total;
+	}
+
+	/**
+	 * Like <tt>run()</tt>, but one word at a time through a communicator.
+	 */
+	private static long run(final Communicator communicator, int speakers,
+			int listeners, final int words) {
+		final long[] sums = new long[listeners];
+
+		KThread[] threads = new KThread[speakers + listeners];
+		for (int i = 0; i < speakers; i++) {
+			final int first = words * i / speakers;
+			final int last = words * (i + 1) / speakers;
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int next = first; next < last; next++)
+						communicator.speak(next);
+				}
+			}).setName("speaker " + i);
+		}
+		for (int i = 0; i < listeners; i++) {
+			final int which = i;
+			final int quota = words * (i + 1) / listeners - words * i / listeners;
+			threads[speakers + i] = new KThread(new Runnable() {
+				public void run() {
+					for (int got = 0; got < quota; got++)
+						sums[which] += communicator.listen();
+				}
+			}).setName("listener " + i);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		long total = 0;
+		for (int i = 0; i < listeners; i++)
+			total += sums[i];
+		return total;
+	}
+
+	/**
+	 * Move 8192 words between 1x1 up to 64x64 senders and receivers, through
+	 * a communicator and through a channel of 64 words moving 16 at a time,
+	 * and print the simulated and real time each takes.
+	 */
+	private static void benchmark() {
+		int words = 8192;
+
+		for (int n = 1; n <= 64; n *= 4) {
+			long ticks = Machine.timer().getTime();
+			long start = System.nanoTime();
+			Lib.assertTrue(run(new Communicator(), n, n, words) == sum(words));
+			long communicatorTicks = Machine.timer().getTime() - ticks;
+			long communicatorTime = System.nanoTime() - start;
+
+			ticks = Machine.timer().getTime();
+			start = System.nanoTime();
+			Lib.assertTrue(run(new Channel(64), n, n, words, 16) == sum(words));
+			long channelTicks = Machine.timer().getTime() - ticks;
+			long channelTime = System.nanoTime() - start;
+
+			System.out.println("Channel: " + n + "x" + n + ", communicator "
+					+ communicatorTicks + " ticks, "
+					+ communicatorTime / 1000000 + " ms; channel "
+					+ channelTicks + " ticks, " + channelTime / 1000000
+					+ " ms");
+		}
+	}
+
+	private int[] buffer;
+
+	/** The index of the oldest word in the buffer. */
+	private int head = 0;
+
+	/** The number of words in the buffer. */
+	private int count = 0;
+
+	private int numSendersWaiting = 0;
+
+	private int numReceiversWaiting = 0;
+
+	private Lock lock = new Lock();
+
+	private Condition2 roomAvailable = new Condition2(lock);
+
+	private Condition2 wordsAvailable = new Condition2(lock);
+}
@@ -62,6 +62,8 @@ public class Condition {
 		this.conditionLock = conditionLock;
 
 		waitQueue = new LinkedList<Semaphore>();
+
+		profile = LockProfile.forSite("Condition");
 	}
 
 	/**
@@ -79,11 +81,15 @@ public class Condition {
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-		Semaphore waiter = new Semaphore(0);
+		// the waiter's contention is this condition's, so it is not profiled
+		Semaphore waiter = new Semaphore(0, null);
 		waitQueue.add(waiter);
 
+		long since = (profile != null) ? Machine.timer().getTime() : 0;
 		conditionLock.release();
 		waiter.P();
+		if (profile != null)
+			profile.waited(KThread.currentThread(), since);
 		conditionLock.acquire();
 	}
 
@@ -150,4 +156,7 @@ public class Condition {
 	private Lock conditionLock;
 
 	private LinkedList<Semaphore> waitQueue;
+
+	/** Where waits are recorded, or <tt>null</tt> if they are not. */
+	private LockProfile profile;
 }
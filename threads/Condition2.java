@@ -23,6 +23,8 @@ public class Condition2 {
 	 */
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
+
+		profile = LockProfile.forSite("Condition2");
 	}
 
 	/**
@@ -36,9 +38,12 @@ public class Condition2 {
 		
 		boolean intStatus = Machine.interrupt().disable();
 		
+		long since = (profile != null) ? Machine.timer().getTime() : 0;
 		conditionLock.release();
 		waitQueue.waitForAccess(KThread.currentThread());
 		KThread.sleep();
+		if (profile != null)
+			profile.waited(KThread.currentThread(), since);
 		conditionLock.acquire();
 		
 		Machine.interrupt().restore(intStatus);
@@ -112,6 +117,9 @@ public class Condition2 {
 	    producer.join();
 	}
 	private Lock conditionLock;
+
+	/** Where waits are recorded, or <tt>null</tt> if they are not. */
+	private LockProfile profile;
 	
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
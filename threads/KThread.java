@@ -60,8 +60,11 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
-			readyQueue.acquire(this);
+			readyQueues = new ThreadQueue[Math.max(Machine.numProcessors(), 1)];
+			for (int i = 0; i < readyQueues.length; i++)
+				readyQueues[i] = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueues[0].acquire(this);
+			numReady = new int[readyQueues.length];
 
 			currentThread = this;
 			tcb = TCB.currentTCB();
@@ -141,6 +144,31 @@ public class KThread {
 			return 0;
 	}
 
+	/**
+	 * Bind this thread to the specified processor. Threads are spread over
+	 * the processors in creation order; this overrides that choice, and may
+	 * only be called before the thread is forked.
+	 * 
+	 * @param cpu the number of the processor to run this thread on.
+	 * @return this thread.
+	 */
+	public KThread setProcessor(int cpu) {
+		Lib.assertTrue(status == statusNew);
+		Lib.assertTrue(cpu >= 0 && cpu < readyQueues.length);
+
+		this.cpu = cpu;
+		return this;
+	}
+
+	/**
+	 * Get the number of the processor this thread runs on.
+	 * 
+	 * @return the number of this thread's processor.
+	 */
+	public int getProcessor() {
+		return cpu;
+	}
+
 	/**
 	 * Causes this thread to begin execution. The result is that two threads are
 	 * running concurrently: the current thread (which returns from the call to
@@ -156,6 +184,8 @@ public class KThread {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		joinQueue.acquire(this);
+
 		tcb.start(new Runnable() {
 			public void run() {
 				runThread();
@@ -203,7 +233,11 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
-		currentThread.sema.V();
+
+		KThread joiner;
+		while ((joiner = currentThread.joinQueue.nextThread()) != null)
+			joiner.ready();
+
 		sleep();
 	}
 
@@ -215,7 +249,7 @@ public class KThread {
 	 * <p>
 	 * Returns immediately if no other thread is ready to run. Otherwise returns
 	 * when the current thread is chosen to run again by
-	 * <tt>readyQueue.nextThread()</tt>.
+	 * <tt>runNextThread()</tt>.
 	 * 
 	 * <p>
 	 * Interrupts are disabled, so that the current thread can atomically add
@@ -270,8 +304,11 @@ public class KThread {
 		Lib.assertTrue(status != statusReady);
 
 		status = statusReady;
-		if (this != idleThread)
-			readyQueue.waitForAccess(this);
+		if (this != idleThread) {
+			readyQueues[cpu].waitForAccess(this);
+			numReady[cpu]++;
+			readyTime = Machine.timer().getTime();
+		}
 
 		Machine.autoGrader().readyThread(this);
 	}
@@ -280,12 +317,24 @@ public class KThread {
 	 * Waits for this thread to finish. If this thread is already finished,
 	 * return immediately. This method must only be called once; the second call
 	 * is not guaranteed to return. This thread must not be the current thread.
+	 * 
+	 * <p>
+	 * A forked thread owns a priority-transferring queue that its joiners wait
+	 * on, so the scheduler can donate their priority to it.
 	 */
 	public void join() {
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
 
 		Lib.assertTrue(this != currentThread);
-		sema.P();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (status != statusFinished) {
+			joinQueue.waitForAccess(currentThread);
+			sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -316,12 +365,37 @@ public class KThread {
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
+	 * 
+	 * <p>
+	 * On a multiprocessor each processor keeps its own simulated time, and the
+	 * processors take turns executing. The next thread comes from the
+	 * processor that is furthest behind among those with ready threads, so
+	 * that their clocks keep pace; ties go to the first processor after the
+	 * current one.
 	 */
 	private static void runNextThread() {
-		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		KThread nextThread = null;
+
+		int next = -1;
+		for (int i = 1; i <= readyQueues.length; i++) {
+			int cpu = (currentCPU + i) % readyQueues.length;
+			if (numReady[cpu] > 0 && (next < 0 || Machine.processor(cpu)
+					.getTime() < Machine.processor(next).getTime()))
+				next = cpu;
+		}
+		if (next >= 0) {
+			nextThread = readyQueues[next].nextThread();
+			numReady[next]--;
+		}
+
+		if (nextThread == null) {
 			nextThread = idleThread;
 
+			// every thread is blocked, so nothing happens until the next
+			// interrupt; don't spin through the idle loop to get there
+			Machine.interrupt().idle();
+		}
+
 		nextThread.run();
 	}
 
@@ -356,6 +430,12 @@ public class KThread {
 
 		currentThread = this;
 
+		// the idle thread stays on whichever processor ran out of work
+		if (readyQueues.length > 1 && this != idleThread) {
+			currentCPU = cpu;
+			Machine.switchProcessor(cpu, readyTime);
+		}
+
 		tcb.contextSwitch();
 
 		currentThread.restoreState();
@@ -497,13 +577,31 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
-	private static ThreadQueue readyQueue = null;
+	/**
+	 * The processor this thread is bound to. Always <tt>0</tt> on a
+	 * uniprocessor.
+	 */
+	private int cpu = (readyQueues == null) ? 0 : id % readyQueues.length;
+
+	/** The time at which this thread last became ready. */
+	private long readyTime = 0;
+
+	/** One ready queue per processor. */
+	private static ThreadQueue[] readyQueues = null;
+
+	/** The number of threads in each ready queue. */
+	private static int[] numReady = null;
+
+	/** The processor that is currently executing. */
+	private static int currentCPU = 0;
 
 	private static KThread currentThread = null;
 
 	private static KThread toBeDestroyed = null;
 
 	private static KThread idleThread = null;
-	
-	private Semaphore sema = new Semaphore(0); //extra semicolon?
+
+	/** The threads waiting for this thread to finish. */
+	private ThreadQueue joinQueue = ThreadedKernel.scheduler
+			.newThreadQueue(true);
 }
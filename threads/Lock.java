@@ -23,6 +23,16 @@ public class Lock {
 	 * Allocate a new lock. The lock will initially be <i>free</i>.
 	 */
 	public Lock() {
+		this(LockProfile.forSite("Lock"));
+	}
+
+	/**
+	 * Allocate a new lock that records its contention in a profile.
+	 *
+	 * @param profile the profile to record in, or <tt>null</tt>.
+	 */
+	Lock(LockProfile profile) {
+		this.profile = profile;
 	}
 
 	/**
@@ -36,16 +46,24 @@ public class Lock {
 		KThread thread = KThread.currentThread();
 
 		if (lockHolder != null) {
+			long since = (profile != null) ? Machine.timer().getTime() : 0;
 			waitQueue.waitForAccess(thread);
 			KThread.sleep();
+			if (profile != null)
+				profile.waited(thread, since);
 		}
 		else {
 			waitQueue.acquire(thread);
 			lockHolder = thread;
+			if (profile != null)
+				profile.acquired();
 		}
 
 		Lib.assertTrue(lockHolder == thread);
 
+		if (profile != null)
+			acquiredAt = Machine.timer().getTime();
+
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -57,6 +75,9 @@ public class Lock {
 
 		boolean intStatus = Machine.interrupt().disable();
 
+		if (profile != null)
+			profile.held(acquiredAt);
+
 		if ((lockHolder = waitQueue.nextThread()) != null)
 			lockHolder.ready();
 
@@ -74,6 +95,12 @@ public class Lock {
 
 	private KThread lockHolder = null;
 
+	/** Where contention is recorded, or <tt>null</tt> if it is not. */
+	private LockProfile profile;
+
+	/** The time the holder acquired this lock, if profiled. */
+	private long acquiredAt;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(true);
 }
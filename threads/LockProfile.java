@@ -0,0 +1,202 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Contention statistics for the synchronization primitives created at one
+ * place in the source. <tt>Lock</tt>, <tt>Semaphore</tt>, <tt>Condition</tt>
+ * and <tt>Condition2</tt> each look up a profile when they are created, and
+ * share it with every other primitive of the same kind created at the same
+ * place.
+ *
+ * <p>
+ * Profiling is off unless <tt>LockProfile.enabled</tt> is set. When it is off
+ * no profiles exist, and each primitive only tests its profile for
+ * <tt>null</tt>. When it is on, <tt>print()</tt> reports every profile when
+ * the kernel terminates, most waited-on first.
+ *
+ * <p>
+ * All times are in simulated ticks. For a semaphore, an acquisition is a
+ * <tt>P()</tt>; for a condition variable, it is a <tt>sleep()</tt>, which
+ * always waits. Only locks have a hold time.
+ */
+public class LockProfile {
+	/**
+	 * Allocate a profile that is not in the report.
+	 *
+	 * @param kind the kind of primitive profiled.
+	 * @param site where the primitives were created.
+	 */
+	LockProfile(String kind, String site) {
+		this.kind = kind;
+		this.site = site;
+	}
+
+	/**
+	 * Return the profile for a primitive being created, shared with every
+	 * other primitive of the same kind created at the same place.
+	 *
+	 * @param kind the kind of primitive being created.
+	 * @return the profile, or <tt>null</tt> if profiling is off.
+	 */
+	static LockProfile forSite(String kind) {
+		if (!enabled)
+			return null;
+
+		String site = "unknown";
+		StackTraceElement[] stack = new Throwable().getStackTrace();
+		for (int i = 0; i < stack.length; i++) {
+			if (!isPrimitive(stack[i].getClassName())) {
+				site = stack[i].toString();
+				break;
+			}
+		}
+
+		String key = kind + " " + site;
+		LockProfile profile = profiles.get(key);
+		if (profile == null) {
+			profile = new LockProfile(kind, site);
+			profiles.put(key, profile);
+		}
+
+		return profile;
+	}
+
+	private static boolean isPrimitive(String className) {
+		return className.equals(LockProfile.class.getName())
+				|| className.equals(Lock.class.getName())
+				|| className.equals(Semaphore.class.getName())
+				|| className.equals(Condition.class.getName())
+				|| className.equals(Condition2.class.getName());
+	}
+
+	/**
+	 * Record an acquisition that did not wait.
+	 */
+	void acquired() {
+		numAcquired++;
+	}
+
+	/**
+	 * Record an acquisition that waited.
+	 *
+	 * @param thread the thread that waited.
+	 * @param since the time the thread started waiting.
+	 */
+	void waited(KThread thread, long since) {
+		long ticks = Machine.timer().getTime() - since;
+
+		numAcquired++;
+		numContended++;
+		waitTicks += ticks;
+		if (ticks > maxWaitTicks || longestWaiter == null) {
+			maxWaitTicks = ticks;
+			longestWaiter = thread.toString();
+		}
+	}
+
+	/**
+	 * Record a lock being released.
+	 *
+	 * @param since the time the lock was acquired.
+	 */
+	void held(long since) {
+		holdTicks += Machine.timer().getTime() - since;
+	}
+
+	/**
+	 * Print every profile that was used, most total wait first, if profiling
+	 * is on.
+	 */
+	public static void print() {
+		if (!enabled)
+			return;
+
+		ArrayList<LockProfile> used = new ArrayList<LockProfile>();
+		for (LockProfile profile : profiles.values()) {
+			if (profile.numAcquired > 0)
+				used.add(profile);
+		}
+
+		Collections.sort(used, new Comparator<LockProfile>() {
+			public int compare(LockProfile a, LockProfile b) {
+				if (a.waitTicks != b.waitTicks)
+					return (a.waitTicks > b.waitTicks) ? -1 : 1;
+				return a.site.compareTo(b.site);
+			}
+		});
+
+		System.out.println("Lock profile: " + used.size() + " sites");
+		for (LockProfile profile : used)
+			System.out.println("  " + profile);
+	}
+
+	/**
+	 * Return this profile's statistics on one line.
+	 *
+	 * @return a summary of this profile.
+	 */
+	public String toString() {
+		String s = kind + " " + site + ": " + numAcquired + " acquired, "
+				+ numContended + " contended, " + waitTicks + " ticks waiting";
+		if (longestWaiter != null)
+			s += " (longest " + maxWaitTicks + " by " + longestWaiter + ")";
+		if (kind.equals("Lock"))
+			s += ", " + holdTicks + " ticks held";
+		return s;
+	}
+
+	/**
+	 * Test that a profiled lock counts a contended acquisition and the time
+	 * it spent waiting and held, using a profile of its own.
+	 */
+	public static void selfTest() {
+		LockProfile profile = new LockProfile("Lock", "selfTest");
+		final Lock lock = new Lock(profile);
+
+		lock.acquire();
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+			}
+		}).setName("lock profile");
+		thread.fork();
+		ThreadedKernel.alarm.waitUntil(500);
+		lock.release();
+		thread.join();
+
+		Lib.assertTrue(profile.numAcquired == 2 && profile.numContended == 1);
+		Lib.assertTrue(profile.maxWaitTicks > 0
+				&& profile.waitTicks == profile.maxWaitTicks);
+		Lib.assertTrue(profile.holdTicks >= 500);
+	}
+
+	private String kind;
+
+	private String site;
+
+	private long numAcquired = 0;
+
+	private long numContended = 0;
+
+	private long waitTicks = 0;
+
+	private long maxWaitTicks = 0;
+
+	/** The thread that waited longest, as a string. */
+	private String longestWaiter = null;
+
+	private long holdTicks = 0;
+
+	private static final boolean enabled = Config.getBoolean(
+			"LockProfile.enabled", false);
+
+	private static HashMap<String, LockProfile> profiles =
+			new HashMap<String, LockProfile>();
+}
@@ -2,46 +2,334 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Random;
 
 /**
  * A scheduler that chooses threads using a lottery.
- * 
+ *
  * <p>
  * A lottery scheduler associates a number of tickets with each thread. When a
  * thread needs to be dequeued, a random lottery is held, among all the tickets
  * of all the threads waiting to be dequeued. The thread that holds the winning
  * ticket is chosen.
- * 
+ *
  * <p>
  * Note that a lottery scheduler must be able to handle a lot of tickets
  * (sometimes billions), so it is not acceptable to maintain state for every
  * ticket.
- * 
+ *
  * <p>
  * A lottery scheduler must partially solve the priority inversion problem; in
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
 	/**
 	 * Allocate a new lottery scheduler.
 	 */
 	public LotteryScheduler() {
+		this(Lib.random(Integer.MAX_VALUE));
+	}
+
+	/**
+	 * Allocate a new lottery scheduler that draws from its own random number
+	 * generator, so that it does not disturb the one in <tt>Lib</tt>.
+	 *
+	 * @param seed the seed for the lottery draws.
+	 */
+	protected LotteryScheduler(long seed) {
+		random = new Random(seed);
 	}
 
 	/**
 	 * Allocate a new lottery thread queue.
-	 * 
+	 *
 	 * @param transferPriority <tt>true</tt> if this queue should transfer
 	 * tickets from waiting threads to the owning thread.
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	/**
+	 * Test that draws follow the ticket counts and that tickets add up
+	 * through a lock, on a private scheduler and threads that are never
+	 * forked. If the kernel schedules by tickets, also test that they add up
+	 * through a join. If <tt>LotteryScheduler.benchmark</tt> is set, also time
+	 * draws from queues of 10 to 100,000 waiting threads.
+	 */
+	public static void selfTest() {
+		LotteryScheduler s = new LotteryScheduler(0);
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// b holds three times as many tickets as a
+		ThreadQueue ready = s.newThreadQueue(false);
+		s.setPriority(b, 3);
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+
+		int wins = 0;
+		for (int i = 0; i < 4000; i++) {
+			KThread winner = ready.nextThread();
+			if (winner == b)
+				wins++;
+			ready.waitForAccess(winner);
+		}
+		Lib.assertTrue(wins > 2800 && wins < 3200);
+
+		// a holds the lock, so it gets the tickets of everyone waiting on it
+		ThreadQueue lock = s.newThreadQueue(true);
+		lock.acquire(a);
+		s.setPriority(c, priorityMaximum);
+		lock.waitForAccess(c);
+		Lib.assertTrue(s.getEffectivePriority(a) == priorityMaximum);
+		Lib.assertTrue(((LotteryQueue) ready).total == 1L + 3
+				+ priorityMaximum);
+
+		Lib.assertTrue(lock.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 1);
+		Lib.assertTrue(((LotteryQueue) ready).total == 4);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (ThreadedKernel.scheduler instanceof TicketScheduler)
+			joinTest();
+
+		if (Config.getBoolean("LotteryScheduler.benchmark", false)) {
+			for (int n = 10; n <= 100000; n *= 10)
+				benchmark(s, n);
+		}
+	}
+
+	private static void benchmark(LotteryScheduler s, int n) {
+		ThreadQueue queue = s.newThreadQueue(false);
+		Random tickets = new Random(n);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < n; i++) {
+			KThread thread = new KThread();
+			s.setPriority(thread, 1 + tickets.nextInt(1000000));
+			queue.waitForAccess(thread);
+		}
+
+		int draws = 200000;
+		long start = System.nanoTime();
+		for (int i = 0; i < draws; i++)
+			queue.waitForAccess(queue.nextThread());
+		long elapsed = System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("LotteryScheduler: " + n + " threads, "
+				+ ((LotteryQueue) queue).total + " tickets, "
+				+ (elapsed / draws) + " ns per draw");
+	}
+
+	/**
+	 * Join a thread while holding 1000 tickets, and check that the joined
+	 * thread runs with those tickets as well as its own. <tt>join()</tt>
+	 * waits on a queue of the kernel's scheduler, so this needs the kernel to
+	 * schedule by tickets.
+	 */
+	private static void joinTest() {
+		final Scheduler s = ThreadedKernel.scheduler;
+		final int[] tickets = new int[1];
+
+		KThread joinee = new KThread(new Runnable() {
+			public void run() {
+				boolean intStatus = Machine.interrupt().disable();
+				tickets[0] = s.getEffectivePriority();
+				Machine.interrupt().restore(intStatus);
+			}
+		}).setName("joinee");
+
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = s.getPriority();
+		s.setPriority(1000);
+		Machine.interrupt().restore(intStatus);
+
+		joinee.fork();
+		joinee.join();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(s.getEffectivePriority() == 1000);
+		s.setPriority(priority);
+		Machine.interrupt().restore(intStatus);
+
+		Lib.assertTrue(tickets[0] == 1 + 1000);
+	}
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (ThreadState) thread.schedulingState;
 	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 *
+	 * <p>
+	 * Each waiting thread occupies a slot in a Fenwick tree of ticket counts,
+	 * so adding a thread, removing one, changing its tickets, and finding the
+	 * holder of a given ticket all take <i>O(log n)</i> time. Slots are reused
+	 * as threads leave, and the tree doubles when it runs out.
+	 */
+	protected class LotteryQueue extends TicketQueue {
+		LotteryQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Hold a lottery among the waiting threads. Unlike in a priority
+		 * queue, each call draws again, so <tt>nextThread()</tt> may choose
+		 * a different thread than an earlier call to this method.
+		 *
+		 * @return the winner of the lottery, or <tt>null</tt> if no thread is
+		 * waiting.
+		 */
+		protected ThreadState pickNextThread() {
+			if (count == 0)
+				return null;
+
+			long ticket = (long) (random.nextDouble() * total);
+			if (ticket >= total)
+				ticket = total - 1;
+
+			// find the first slot whose prefix sum exceeds the ticket
+			int index = 0;
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			return slots[index];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + " (" + slots[i].tickets
+							+ ") ");
+			}
+			System.out.println();
+		}
+
+		protected void insert(ThreadState waiter) {
+			LotteryState state = (LotteryState) waiter;
+
+			if (numFree == 0)
+				grow();
+
+			int slot = free[--numFree];
+			slots[slot] = state;
+			state.slot = slot;
+			state.waiting = this;
+
+			update(slot, state.tickets);
+			count++;
+		}
+
+		protected void remove(ThreadState waiter) {
+			LotteryState state = (LotteryState) waiter;
+			int slot = state.slot;
+
+			update(slot, -state.tickets);
+			count--;
+
+			slots[slot] = null;
+			free[numFree++] = slot;
+			state.slot = -1;
+			state.waiting = null;
+		}
+
+		/**
+		 * Add <i>delta</i> tickets to the specified slot.
+		 */
+		private void update(int slot, long delta) {
+			for (int i = slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			total += delta;
+		}
+
+		protected void changeTickets(TicketState state, long tickets) {
+			update(((LotteryState) state).slot, tickets - state.tickets);
+		}
+
+		/**
+		 * Double the number of slots and rebuild the tree in linear time.
+		 */
+		private void grow() {
+			int capacity = slots.length;
+
+			LotteryState[] oldSlots = slots;
+			slots = new LotteryState[capacity * 2];
+			System.arraycopy(oldSlots, 0, slots, 0, capacity);
+
+			tree = new long[capacity * 2 + 1];
+			for (int i = 1; i <= slots.length; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].tickets;
+
+				int parent = i + (i & -i);
+				if (parent <= slots.length)
+					tree[parent] += tree[i];
+			}
+
+			free = new int[capacity * 2];
+			numFree = 0;
+			for (int i = slots.length - 1; i >= capacity; i--)
+				free[numFree++] = i;
+		}
+
+		/** The Fenwick tree over the tickets in each slot, indexed from 1. */
+		private long[] tree = new long[initialSlots + 1];
+
+		/** The waiting thread in each slot, or <tt>null</tt>. */
+		private LotteryState[] slots = new LotteryState[initialSlots];
+
+		/** Unused slots, lowest on top. */
+		private int[] free = { 3, 2, 1, 0 };
+
+		private int numFree = initialSlots;
+
+		/** The number of waiting threads. */
+		private int count = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a lottery scheduler.
+	 */
+	protected class LotteryState extends TicketState {
+		public LotteryState(KThread thread) {
+			super(thread);
+		}
+
+		/** This thread's slot in <tt>waiting</tt>. */
+		private int slot = -1;
+	}
+
+	private static final int initialSlots = 4;
+
+	/** The source of lottery draws. */
+	private Random random;
 }
@@ -0,0 +1,434 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multilevel feedback queue scheduler.
+ *
+ * <p>
+ * Every thread is at one of several levels, and the next thread to be dequeued
+ * is the one that has waited longest at the highest level (level 0). A thread
+ * starts at level 0. Each level has a quantum, twice as long as the level
+ * above it. When a thread has run for a whole quantum at its level, it moves
+ * down a level, and the timer interrupt preempts it. Threads that mostly wait,
+ * such as interactive ones, therefore stay near the top and are picked ahead
+ * of CPU-bound threads when they wake up. To stop threads at the bottom from
+ * starving, every thread is boosted back to level 0 at a regular interval.
+ *
+ * <p>
+ * Time is charged by sampling: at each timer interrupt, the ticks since the
+ * previous one are charged to the thread that is running.
+ *
+ * <p>
+ * The number of levels, the quantum of level 0 and the boost interval, all
+ * in ticks, are read from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.boostInterval</tt>.
+ */
+public class MLFQScheduler extends Scheduler {
+	/**
+	 * Allocate a new MLFQ scheduler configured from the Nachos
+	 * configuration.
+	 */
+	public MLFQScheduler() {
+		this(Config.getInteger("MLFQScheduler.levels", 3),
+				Config.getInteger("MLFQScheduler.quantum", 1000),
+				Config.getInteger("MLFQScheduler.boostInterval", 20000));
+	}
+
+	/**
+	 * Allocate a new MLFQ scheduler.
+	 *
+	 * @param levels the number of levels.
+	 * @param quantum the quantum of level 0, in ticks.
+	 * @param boostInterval the number of ticks between boosts.
+	 */
+	protected MLFQScheduler(int levels, int quantum, int boostInterval) {
+		Lib.assertTrue(levels >= 1 && levels <= 31);
+		Lib.assertTrue(quantum > 0 && boostInterval > 0);
+
+		this.levels = levels;
+		this.quantum = quantum;
+		this.boostInterval = boostInterval;
+
+		residency = new long[levels];
+		grants = new long[levels];
+		demotions = new long[levels];
+
+		pendingLevel = levels;
+		nextBoost = boostInterval;
+	}
+
+	/**
+	 * Allocate a new MLFQ thread queue.
+	 *
+	 * @param transferPriority ignored. Threads do not donate levels.
+	 * @return a new MLFQ thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new MLFQQueue();
+	}
+
+	/**
+	 * Charge the running thread for the ticks since the last timer
+	 * interrupt, and boost every thread if the boost interval has passed.
+	 * Preempt the running thread if its quantum expired, or if a thread at a
+	 * higher level became ready since the last timer interrupt.
+	 *
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		long time = Machine.timer().getTime();
+		long elapsed = time - lastInterrupt;
+		lastInterrupt = time;
+
+		if (time >= nextBoost) {
+			boost();
+			nextBoost = time + boostInterval;
+		}
+
+		int readied = pendingLevel;
+		pendingLevel = levels;
+
+		// the idle thread never waits on a queue, so it has no state
+		KThread thread = KThread.currentThread();
+		if (thread.schedulingState == null)
+			return false;
+
+		MLFQState state = getState(thread);
+		if (charge(state, elapsed))
+			return true;
+
+		return readied < state.level;
+	}
+
+	/**
+	 * Return the level of the specified thread.
+	 *
+	 * @param thread the thread whose level to return.
+	 * @return the level of the thread, 0 being the highest.
+	 */
+	public int getLevel(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getState(thread).refresh().level;
+	}
+
+	/**
+	 * Print the time spent, the threads granted access, and the demotions
+	 * at each level, and the number of boosts, under the <tt>t</tt> debug
+	 * flag.
+	 */
+	public void printStats() {
+		for (int level = 0; level < levels; level++) {
+			Lib.debug(dbgThread, "MLFQ level " + level + ": "
+					+ residency[level] + " ticks, " + grants[level]
+					+ " grants, " + demotions[level] + " demotions");
+		}
+		Lib.debug(dbgThread, "MLFQ boosts: " + numBoosts);
+	}
+
+	/**
+	 * Test level ordering, demotion and boosting on a private scheduler and
+	 * threads that are never forked. If <tt>MLFQScheduler.benchmark</tt> is
+	 * set, also measure how late an interactive thread runs while a CPU-bound
+	 * thread competes with it under the kernel's scheduler.
+	 */
+	public static void selfTest() {
+		MLFQScheduler s = new MLFQScheduler(3, 100, 1000);
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue ready = s.newThreadQueue(false);
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+		Lib.assertTrue(ready.nextThread() == a);
+
+		// a uses up its quantum, moves down, and comes back behind c
+		Lib.assertTrue(!s.charge(s.getState(a), 60));
+		Lib.assertTrue(s.charge(s.getState(a), 40));
+		Lib.assertTrue(s.getLevel(a) == 1);
+		ready.waitForAccess(a);
+		ready.waitForAccess(c);
+		Lib.assertTrue(ready.nextThread() == b);
+		Lib.assertTrue(ready.nextThread() == c);
+
+		// a reaches the bottom level, where each quantum is 400 ticks
+		Lib.assertTrue(s.charge(s.getState(a), 200));
+		Lib.assertTrue(!s.charge(s.getState(a), 399));
+		Lib.assertTrue(s.charge(s.getState(a), 1));
+		Lib.assertTrue(s.getLevel(a) == 2);
+
+		// a boost brings waiting threads back to the top, level by level
+		ready.waitForAccess(b);
+		s.boost();
+		ready.waitForAccess(c);
+		Lib.assertTrue(s.getLevel(a) == 0);
+		Lib.assertTrue(ready.nextThread() == b);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == c);
+		Lib.assertTrue(ready.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (Config.getBoolean("MLFQScheduler.benchmark", false))
+			benchmark();
+	}
+
+	/**
+	 * Run a thread that sleeps 2,000 ticks at a time against one that
+	 * computes for 50,000 ticks without blocking, and print how late the
+	 * sleeper runs after each wakeup.
+	 */
+	private static void benchmark() {
+		final int rounds = 10;
+		final long[] late = new long[rounds];
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < rounds; i++) {
+					long wake = Machine.timer().getTime() + 2000;
+					ThreadedKernel.alarm.waitUntil(2000);
+					late[i] = Machine.timer().getTime() - wake;
+				}
+			}
+		}).setName("interactive");
+
+		KThread cpuBound = new KThread(new Runnable() {
+			public void run() {
+				long end = Machine.timer().getTime() + 50000;
+				while (Machine.timer().getTime() < end) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		}).setName("cpu-bound");
+
+		interactive.fork();
+		cpuBound.fork();
+		interactive.join();
+		cpuBound.join();
+
+		long total = 0, max = 0;
+		for (int i = 0; i < rounds; i++) {
+			total += late[i];
+			max = Math.max(max, late[i]);
+		}
+
+		System.out.println("MLFQScheduler: "
+				+ ThreadedKernel.scheduler.getClass().getName()
+				+ ", wakeups late by " + (total / rounds) + " ticks on average, "
+				+ max + " at most");
+	}
+
+	/**
+	 * Charge a thread for running the specified number of ticks. If that
+	 * completes its quantum, move it down a level.
+	 *
+	 * @return <tt>true</tt> if the thread's quantum expired.
+	 */
+	private boolean charge(MLFQState state, long ticks) {
+		state.refresh();
+
+		residency[state.level] += ticks;
+		state.used += ticks;
+		if (state.used < (long) quantum << state.level)
+			return false;
+
+		state.used = 0;
+		if (state.level < levels - 1) {
+			demotions[state.level]++;
+			state.level++;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Move every thread back to level 0. Threads catch up with a boost the
+	 * next time they are looked at, and queues merge their levels the next
+	 * time they are used, so this takes constant time.
+	 */
+	private void boost() {
+		numBoosts++;
+	}
+
+	private MLFQState getState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new MLFQState(thread);
+
+		return (MLFQState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> with a FIFO list of waiting threads for each
+	 * level, and a bitmap of the levels that have any.
+	 */
+	private class MLFQQueue extends ThreadQueue {
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			merge();
+
+			MLFQState state = getState(thread).refresh();
+			int level = state.level;
+
+			state.next = null;
+			if (tails[level] == null)
+				heads[level] = state;
+			else
+				tails[level].next = state;
+			tails[level] = state;
+			nonEmpty |= 1 << level;
+
+			pendingLevel = Math.min(pendingLevel, level);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			merge();
+
+			if (nonEmpty == 0)
+				return null;
+
+			int level = Integer.numberOfTrailingZeros(nonEmpty);
+			MLFQState state = heads[level];
+
+			heads[level] = state.next;
+			if (heads[level] == null) {
+				tails[level] = null;
+				nonEmpty &= ~(1 << level);
+			}
+			state.next = null;
+
+			grants[level]++;
+
+			return state.thread;
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			getState(thread);
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int level = 0; level < levels; level++) {
+				for (MLFQState s = heads[level]; s != null; s = s.next)
+					System.out.print(s.thread + " (" + level + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * If there was a boost since this queue was last used, append each
+		 * level to level 0 in order.
+		 */
+		private void merge() {
+			if (boosts == numBoosts)
+				return;
+
+			boosts = numBoosts;
+
+			for (int level = 1; level < levels; level++) {
+				if (heads[level] == null)
+					continue;
+
+				if (tails[0] == null)
+					heads[0] = heads[level];
+				else
+					tails[0].next = heads[level];
+				tails[0] = tails[level];
+
+				heads[level] = tails[level] = null;
+			}
+
+			if (heads[0] != null)
+				nonEmpty = 1;
+		}
+
+		private MLFQState[] heads = new MLFQState[levels];
+
+		private MLFQState[] tails = new MLFQState[levels];
+
+		/** Bit <i>l</i> is set if some thread is waiting at level <i>l</i>. */
+		private int nonEmpty = 0;
+
+		/** The number of boosts this queue has merged. */
+		private long boosts = numBoosts;
+	}
+
+	/**
+	 * The scheduling state of a thread: its level, and how much of the
+	 * quantum at that level it has used.
+	 */
+	private class MLFQState {
+		MLFQState(KThread thread) {
+			this.thread = thread;
+
+			boosts = numBoosts;
+		}
+
+		/**
+		 * Catch up with any boosts since this state was last used.
+		 *
+		 * @return this state.
+		 */
+		MLFQState refresh() {
+			if (boosts != numBoosts) {
+				boosts = numBoosts;
+				level = 0;
+				used = 0;
+			}
+
+			return this;
+		}
+
+		private KThread thread;
+
+		private int level = 0;
+
+		/** The ticks charged at the current level. */
+		private long used = 0;
+
+		/** The number of boosts this state has caught up with. */
+		private long boosts;
+
+		/** The next thread waiting at the same level of the same queue. */
+		private MLFQState next = null;
+	}
+
+	private int levels;
+
+	private int quantum;
+
+	private int boostInterval;
+
+	private long lastInterrupt = 0;
+
+	private long nextBoost;
+
+	private long numBoosts = 0;
+
+	/** The highest level of any thread readied since the last interrupt. */
+	private int pendingLevel;
+
+	/** The ticks charged at each level. */
+	private long[] residency;
+
+	/** The threads granted access at each level. */
+	private long[] grants;
+
+	/** The threads moved down from each level. */
+	private long[] demotions;
+
+	private static final char dbgThread = 't';
+}
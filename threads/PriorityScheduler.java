@@ -59,8 +59,8 @@ public class PriorityScheduler extends Scheduler {
 	public void setPriority(KThread thread, int priority) {
 		Lib.assertTrue(Machine.interrupt().disabled());
 
-		Lib.assertTrue(priority >= priorityMinimum
-				&& priority <= priorityMaximum);
+		Lib.assertTrue(priority >= getPriorityMinimum()
+				&& priority <= getPriorityMaximum());
 
 		getThreadState(thread).setPriority(priority);
 	}
@@ -72,7 +72,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMaximum)
+		if (priority == getPriorityMaximum())
 			ret = false;
 		else
 			setPriority(thread, priority + 1);
@@ -88,7 +88,7 @@ public class PriorityScheduler extends Scheduler {
 		KThread thread = KThread.currentThread();
 
 		int priority = getPriority(thread);
-		if (priority == priorityMinimum)
+		if (priority == getPriorityMinimum())
 			ret = false;
 		else
 			setPriority(thread, priority - 1);
@@ -97,6 +97,74 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test queue ordering and priority donation, on a private scheduler and
+	 * threads that are never forked.
+	 */
+	public static void selfTest() {
+		PriorityScheduler s = new PriorityScheduler();
+
+		KThread a = new KThread().setName("a");
+		KThread b = new KThread().setName("b");
+		KThread c = new KThread().setName("c");
+		KThread d = new KThread().setName("d");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// highest priority first, oldest first among equals
+		ThreadQueue ready = s.newThreadQueue(false);
+		s.setPriority(b, 3);
+		s.setPriority(c, 3);
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+		ready.waitForAccess(c);
+		ready.waitForAccess(d);
+		Lib.assertTrue(ready.nextThread() == b);
+		Lib.assertTrue(ready.nextThread() == c);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == d);
+		Lib.assertTrue(ready.nextThread() == null);
+
+		// a thread raised while waiting keeps its place by arrival
+		ready.waitForAccess(a);
+		ready.waitForAccess(b);
+		s.setPriority(a, 3);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == b);
+
+		// donation along a chain: d waits for c, which waits for a
+		ThreadQueue lock1 = s.newThreadQueue(true);
+		ThreadQueue lock2 = s.newThreadQueue(true);
+		s.setPriority(a, 1);
+		s.setPriority(c, 1);
+		lock1.acquire(a);
+		lock2.acquire(c);
+		lock1.waitForAccess(c);
+		s.setPriority(d, 6);
+		lock2.waitForAccess(d);
+		Lib.assertTrue(s.getEffectivePriority(c) == 6);
+		Lib.assertTrue(s.getEffectivePriority(a) == 6);
+
+		// a donated thread is picked ahead of a higher base priority
+		ready.waitForAccess(b);
+		ready.waitForAccess(a);
+		Lib.assertTrue(ready.nextThread() == a);
+		Lib.assertTrue(ready.nextThread() == b);
+
+		// lowering the donor lowers the whole chain
+		s.setPriority(d, 2);
+		Lib.assertTrue(s.getEffectivePriority(a) == 2);
+
+		// releasing a lock drops the donation
+		Lib.assertTrue(lock1.nextThread() == c);
+		Lib.assertTrue(s.getEffectivePriority(a) == 1);
+		Lib.assertTrue(s.getEffectivePriority(c) == 2);
+		Lib.assertTrue(lock2.nextThread() == d);
+		Lib.assertTrue(s.getEffectivePriority(c) == 1);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -112,6 +180,26 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public static final int priorityMaximum = 7;
 
+	/**
+	 * Return the minimum priority that a thread can have under this
+	 * scheduler.
+	 * 
+	 * @return the minimum priority.
+	 */
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	/**
+	 * Return the maximum priority that a thread can have under this
+	 * scheduler.
+	 * 
+	 * @return the maximum priority.
+	 */
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
 	/**
 	 * Return the scheduling state of the specified thread.
 	 * 
@@ -127,6 +215,14 @@ public class PriorityScheduler extends Scheduler {
 
 	/**
 	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * 
+	 * <p>
+	 * Waiting threads are kept in one FIFO list per effective priority, and a
+	 * bitmap records which lists are non-empty, so the highest priority
+	 * waiting thread is found, and a thread removed, in constant time. Each
+	 * list is in order of arrival. A thread that starts waiting goes straight
+	 * to the end of its list; only a thread whose effective priority changes
+	 * while it waits walks the list for its new priority to find its place.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +241,18 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				release();
+				return null;
+			}
+
+			remove(next);
+			next.waiting = null;
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +262,103 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			if (nonEmpty == 0)
+				return null;
+
+			return heads[topPriority()];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+				for (ThreadState s = heads[p]; s != null; s = s.next)
+					System.out.print(s.thread + " (" + p + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Return the highest effective priority of any waiting thread, or
+		 * <tt>priorityMinimum</tt> if no thread is waiting.
+		 * 
+		 * @return the priority this queue donates to its owner.
+		 */
+		protected int topPriority() {
+			if (nonEmpty == 0)
+				return priorityMinimum;
+
+			return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+		}
+
+		/**
+		 * Add a thread to the list for its effective priority, behind every
+		 * thread there that started waiting before it.
+		 * 
+		 * @param state the thread that is now waiting on this queue.
+		 */
+		protected void insert(ThreadState state) {
+			int p = state.effectivePriority;
+
+			ThreadState after = tails[p];
+			while (after != null && after.waitStamp > state.waitStamp)
+				after = after.prev;
+
+			state.prev = after;
+			if (after == null) {
+				state.next = heads[p];
+				heads[p] = state;
+			}
+			else {
+				state.next = after.next;
+				after.next = state;
+			}
+
+			if (state.next == null)
+				tails[p] = state;
+			else
+				state.next.prev = state;
+
+			nonEmpty |= 1 << p;
+		}
+
+		/**
+		 * Remove a thread from the list for its effective priority.
+		 * 
+		 * @param state the thread that is no longer waiting on this queue.
+		 */
+		protected void remove(ThreadState state) {
+			int p = state.effectivePriority;
+
+			if (state.prev == null)
+				heads[p] = state.next;
+			else
+				state.prev.next = state.next;
+
+			if (state.next == null)
+				tails[p] = state.prev;
+			else
+				state.next.prev = state.prev;
+
+			state.prev = state.next = null;
+
+			if (heads[p] == null)
+				nonEmpty &= ~(1 << p);
+		}
+
+		/**
+		 * Take access away from the current owner, if any.
+		 */
+		protected void release() {
+			ThreadState previous = owner;
+			if (previous == null)
+				return;
+
+			owner = null;
+			if (transferPriority) {
+				previous.owned.remove(this);
+				previous.updateEffectivePriority();
+			}
 		}
 
 		/**
@@ -170,6 +366,18 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The thread that last acquired this queue, if it still holds it. */
+		protected ThreadState owner = null;
+
+		/** The first waiting thread at each priority. */
+		private ThreadState[] heads = new ThreadState[priorityMaximum + 1];
+
+		/** The last waiting thread at each priority. */
+		private ThreadState[] tails = new ThreadState[priorityMaximum + 1];
+
+		/** Bit <i>p</i> is set if some thread is waiting at priority <i>p</i>. */
+		private int nonEmpty = 0;
 	}
 
 	/**
@@ -189,7 +397,7 @@ public class PriorityScheduler extends Scheduler {
 		public ThreadState(KThread thread) {
 			this.thread = thread;
 
-			setPriority(priorityDefault);
+			priority = effectivePriority = priorityDefault;
 		}
 
 		/**
@@ -207,8 +415,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effectivePriority;
 		}
 
 		/**
@@ -222,7 +429,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +445,14 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waiting == null);
+
+			waiting = waitQueue;
+			waitStamp = numWaits++;
+			waitQueue.insert(this);
+
+			if (waitQueue.transferPriority && waitQueue.owner != null)
+				waitQueue.owner.updateEffectivePriority();
 		}
 
 		/**
@@ -252,7 +466,42 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			waitQueue.release();
+
+			waitQueue.owner = this;
+			if (waitQueue.transferPriority) {
+				owned.add(waitQueue);
+				updateEffectivePriority();
+			}
+		}
+
+		/**
+		 * Recompute the effective priority from the base priority and the
+		 * threads waiting on owned queues. If it changed, move this thread
+		 * within the queue it is waiting on and pass the change on to that
+		 * queue's owner. Only the donation chain through this thread is
+		 * visited, and the walk stops as soon as a priority is unchanged.
+		 */
+		protected void updateEffectivePriority() {
+			int effective = priority;
+			for (Iterator<PriorityQueue> i = owned.iterator(); i.hasNext();)
+				effective = Math.max(effective, i.next().topPriority());
+
+			if (effective == effectivePriority)
+				return;
+
+			PriorityQueue queue = waiting;
+			if (queue != null)
+				queue.remove(this);
+
+			effectivePriority = effective;
+
+			if (queue != null) {
+				queue.insert(this);
+
+				if (queue.transferPriority && queue.owner != null)
+					queue.owner.updateEffectivePriority();
+			}
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +509,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The cached effective priority of the associated thread. */
+		protected int effectivePriority;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waiting = null;
+
+		/** The priority-transferring queues the associated thread owns. */
+		protected HashSet<PriorityQueue> owned = new HashSet<PriorityQueue>();
+
+		/** Orders waiting threads by when they started waiting. */
+		protected long waitStamp;
+
+		/** Neighbors in the waiting list of the same priority. */
+		private ThreadState prev = null, next = null;
 	}
+
+	/** Counts calls to <tt>waitForAccess()</tt>, to stamp waiting threads. */
+	private long numWaits = 0;
 }
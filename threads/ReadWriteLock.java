@@ -0,0 +1,401 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> lets any number of threads hold it for reading at
+ * once, or one thread hold it for writing.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, threads that want to read
+ * wait behind it, so a steady stream of readers cannot starve writers.
+ *
+ * <p>
+ * One thread at a time may also hold the lock in <i>upgradable</i> mode. An
+ * upgradable holder shares the lock with readers, but excludes writers and
+ * other upgradable holders, so it can later call <tt>upgrade()</tt> to wait
+ * for the readers to leave and become the writer, without letting any other
+ * writer in first. A writer can <tt>downgrade()</tt> to a reader at any time.
+ *
+ * <p>
+ * If the lock transfers priority, threads waiting to write donate their
+ * priority to the thread holding the lock for writing or in upgradable mode,
+ * the same way threads waiting for a <tt>Lock</tt> donate to its holder.
+ * Readers can be many, so they are not donated to.
+ */
+public class ReadWriteLock {
+	/**
+	 * Allocate a new read-write lock that transfers priority. The lock will
+	 * initially be free.
+	 */
+	public ReadWriteLock() {
+		this(true);
+	}
+
+	/**
+	 * Allocate a new read-write lock. The lock will initially be free.
+	 *
+	 * @param transferPriority <tt>true</tt> if threads waiting to write
+	 * should donate priority to the writer.
+	 */
+	public ReadWriteLock(boolean transferPriority) {
+		writeQueue = ThreadedKernel.scheduler.newThreadQueue(transferPriority);
+	}
+
+	/**
+	 * Wait until no thread holds or is waiting for this lock for writing,
+	 * then hold it for reading.
+	 */
+	public void acquireRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && !upgrading && numWritersWaiting == 0) {
+			numReaders++;
+		}
+		else {
+			numReadersWaiting++;
+			readQueue.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop holding this lock for reading.
+	 */
+	public void releaseRead() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Lib.assertTrue(numReaders > 0);
+
+		if (--numReaders == 0)
+			grant();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until no other thread holds this lock in any mode, then hold it
+	 * for writing. The current thread must not already hold it for writing
+	 * or in upgradable mode.
+	 */
+	public void acquireWrite() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread && upgrader != thread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && upgrader == null && numReaders == 0) {
+			writeQueue.acquire(thread);
+			writer = thread;
+		}
+		else {
+			numWritersWaiting++;
+			writeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop holding this lock for writing.
+	 */
+	public void releaseWrite() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		if (numWritersWaiting == 0)
+			writeQueue.nextThread();
+
+		grant();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait until no thread holds this lock for writing or in upgradable
+	 * mode, and no thread is waiting to write, then hold it in upgradable
+	 * mode.
+	 */
+	public void acquireUpgradable() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(writer != thread && upgrader != thread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (writer == null && upgrader == null && numWritersWaiting == 0) {
+			writeQueue.acquire(thread);
+			upgrader = thread;
+		}
+		else {
+			numUpgradersWaiting++;
+			upgradeQueue.waitForAccess(thread);
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(upgrader == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Stop holding this lock in upgradable mode.
+	 */
+	public void releaseUpgradable() {
+		Lib.assertTrue(upgrader == KThread.currentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		upgrader = null;
+		if (numWritersWaiting == 0)
+			writeQueue.nextThread();
+
+		grant();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Wait for every reader to release this lock, then change from holding
+	 * it in upgradable mode to holding it for writing. No other thread can
+	 * write in between.
+	 *
+	 * <p>
+	 * A writer may already be waiting when the upgrade completes, so the
+	 * upgradable holder acquires <tt>writeQueue</tt> when it is given the
+	 * lock, while no writer can be waiting, and keeps it as the writer.
+	 */
+	public void upgrade() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(upgrader == thread);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		if (numReaders == 0) {
+			upgrader = null;
+			writer = thread;
+		}
+		else {
+			upgrading = true;
+			KThread.sleep();
+		}
+
+		Lib.assertTrue(writer == thread);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Change from holding this lock for writing to holding it for reading.
+	 * Other readers may then join, unless a writer is waiting.
+	 */
+	public void downgrade() {
+		Lib.assertTrue(isWriteHeldByCurrentThread());
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		writer = null;
+		numReaders++;
+		if (numWritersWaiting == 0)
+			writeQueue.nextThread();
+
+		grant();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Test if the current thread holds this lock for writing.
+	 *
+	 * @return true if the current thread holds this lock for writing.
+	 */
+	public boolean isWriteHeldByCurrentThread() {
+		return (writer == KThread.currentThread());
+	}
+
+	/**
+	 * Hand this lock to whichever waiting threads can now have it: a pending
+	 * upgrade first, then a waiting writer, and only if no writer is waiting,
+	 * every waiting reader and one waiting upgradable holder.
+	 */
+	private void grant() {
+		if (writer != null)
+			return;
+
+		if (upgrading) {
+			if (numReaders == 0) {
+				upgrading = false;
+				writer = upgrader;
+				upgrader = null;
+				writer.ready();
+			}
+			return;
+		}
+
+		if (numWritersWaiting > 0) {
+			if (numReaders == 0 && upgrader == null) {
+				numWritersWaiting--;
+				writer = writeQueue.nextThread();
+				writer.ready();
+			}
+			return;
+		}
+
+		while (numReadersWaiting > 0) {
+			numReadersWaiting--;
+			numReaders++;
+			readQueue.nextThread().ready();
+		}
+
+		if (upgrader == null && numUpgradersWaiting > 0) {
+			numUpgradersWaiting--;
+			upgrader = upgradeQueue.nextThread();
+			writeQueue.acquire(upgrader);
+			upgrader.ready();
+		}
+	}
+
+	/**
+	 * Test shared reading, writer preference, upgrading and downgrading. The
+	 * main thread drives the test and waits for the other threads to block
+	 * where expected, so the outcome does not depend on the scheduler. If
+	 * <tt>ReadWriteLock.benchmark</tt> is set, also compare how readers scale
+	 * on a read-write lock and on a <tt>Lock</tt>.
+	 */
+	public static void selfTest() {
+		final ReadWriteLock rw = new ReadWriteLock();
+		final StringBuffer log = new StringBuffer();
+
+		// readers share the lock, and so does an upgradable holder
+		rw.acquireRead();
+		rw.acquireRead();
+		rw.acquireUpgradable();
+		Lib.assertTrue(rw.numReaders == 2 && rw.upgrader != null);
+
+		KThread writer = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireWrite();
+				Lib.assertTrue(rw.numReaders == 0 && rw.upgrader == null);
+				log.append('w');
+				rw.releaseWrite();
+			}
+		}).setName("rw writer");
+		writer.fork();
+		while (rw.numWritersWaiting == 0)
+			KThread.yield();
+
+		// with a writer waiting, a new reader has to wait too
+		KThread reader = new KThread(new Runnable() {
+			public void run() {
+				rw.acquireRead();
+				log.append('r');
+				rw.releaseRead();
+			}
+		}).setName("rw reader");
+		reader.fork();
+		while (rw.numReadersWaiting == 0)
+			KThread.yield();
+
+		// upgrading goes ahead of the waiting writer
+		rw.releaseRead();
+		rw.releaseRead();
+		rw.upgrade();
+		Lib.assertTrue(rw.isWriteHeldByCurrentThread());
+		log.append('u');
+
+		// the writer still goes ahead of the reader
+		rw.downgrade();
+		Lib.assertTrue(rw.numReaders == 1 && rw.numReadersWaiting == 1);
+		rw.releaseRead();
+
+		writer.join();
+		reader.join();
+		Lib.assertTrue(log.toString().equals("uwr"));
+
+		if (Config.getBoolean("ReadWriteLock.benchmark", false)) {
+			for (int n = 1; n <= 16; n *= 2)
+				benchmark(n);
+		}
+	}
+
+	/**
+	 * Run <i>n</i> readers, each reading 8 times, and one writer, writing 4
+	 * times. Every read and write holds the lock across a 500-tick wait, as if
+	 * for a disk. Print how long this takes with a read-write lock, and with
+	 * a <tt>Lock</tt> for both reads and writes.
+	 */
+	private static void benchmark(int n) {
+		long[] ticks = new long[2];
+
+		for (int pass = 0; pass < 2; pass++) {
+			final ReadWriteLock rw = (pass == 0) ? new ReadWriteLock() : null;
+			final Lock lock = (pass == 1) ? new Lock() : null;
+
+			KThread[] threads = new KThread[n + 1];
+			for (int i = 0; i <= n; i++) {
+				final boolean writes = (i == n);
+				threads[i] = new KThread(new Runnable() {
+					public void run() {
+						for (int j = 0; j < (writes ? 4 : 8); j++) {
+							if (lock != null)
+								lock.acquire();
+							else if (writes)
+								rw.acquireWrite();
+							else
+								rw.acquireRead();
+
+							ThreadedKernel.alarm.waitUntil(500);
+
+							if (lock != null)
+								lock.release();
+							else if (writes)
+								rw.releaseWrite();
+							else
+								rw.releaseRead();
+						}
+					}
+				}).setName(writes ? "rw bench writer" : "rw bench reader");
+			}
+
+			long start = Machine.timer().getTime();
+			for (int i = 0; i <= n; i++)
+				threads[i].fork();
+			for (int i = 0; i <= n; i++)
+				threads[i].join();
+			ticks[pass] = Machine.timer().getTime() - start;
+		}
+
+		System.out.println("ReadWriteLock: " + n + " readers, read-write lock "
+				+ ticks[0] + " ticks, lock " + ticks[1] + " ticks");
+	}
+
+	/** The thread holding this lock for writing, if any. */
+	private KThread writer = null;
+
+	/** The thread holding this lock in upgradable mode, if any. */
+	private KThread upgrader = null;
+
+	/** <tt>true</tt> if <tt>upgrader</tt> is waiting for readers to leave. */
+	private boolean upgrading = false;
+
+	/** The number of threads holding this lock for reading. */
+	private int numReaders = 0;
+
+	private int numReadersWaiting = 0;
+	private int numWritersWaiting = 0;
+	private int numUpgradersWaiting = 0;
+
+	private ThreadQueue readQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+
+	private ThreadQueue writeQueue;
+
+	private ThreadQueue upgradeQueue = ThreadedKernel.scheduler
+			.newThreadQueue(false);
+}
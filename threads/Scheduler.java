@@ -129,6 +129,17 @@ public abstract class Scheduler {
 		setPriority(KThread.currentThread(), priority);
 	}
 
+	/**
+	 * Called by the alarm on every timer interrupt, with interrupts disabled.
+	 * A scheduler that preempts threads returns <tt>true</tt> to make the
+	 * current thread yield. By default, threads are never preempted.
+	 * 
+	 * @return <tt>true</tt> if the current thread should yield.
+	 */
+	public boolean timerInterrupt() {
+		return false;
+	}
+
 	/**
 	 * If possible, raise the priority of the current thread in some
 	 * scheduler-dependent way.
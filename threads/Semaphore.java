@@ -28,7 +28,18 @@ public class Semaphore {
 	 * @param initialValue the initial value of this semaphore.
 	 */
 	public Semaphore(int initialValue) {
+		this(initialValue, LockProfile.forSite("Semaphore"));
+	}
+
+	/**
+	 * Allocate a new semaphore that records its contention in a profile.
+	 *
+	 * @param initialValue the initial value of this semaphore.
+	 * @param profile the profile to record in, or <tt>null</tt>.
+	 */
+	Semaphore(int initialValue, LockProfile profile) {
 		value = initialValue;
+		this.profile = profile;
 	}
 
 	/**
@@ -37,11 +48,16 @@ public class Semaphore {
 	public void P() {
 		boolean intStatus = Machine.interrupt().disable();
 		if (value == 0) {
+			long since = (profile != null) ? Machine.timer().getTime() : 0;
 			waitQueue.waitForAccess(KThread.currentThread());
 			KThread.sleep();
+			if (profile != null)
+				profile.waited(KThread.currentThread(), since);
 		}
 		else {
 			value--;
+			if (profile != null)
+				profile.acquired();
 		}
 		Machine.interrupt().restore(intStatus);
 	}
@@ -99,6 +115,9 @@ public class Semaphore {
 
 	private int value;
 
+	/** Where contention is recorded, or <tt>null</tt> if it is not. */
+	private LockProfile profile;
+
 	private ThreadQueue waitQueue = ThreadedKernel.scheduler
 			.newThreadQueue(false);
 }
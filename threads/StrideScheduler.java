@@ -0,0 +1,383 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares access in proportion to tickets, deterministically.
+ *
+ * <p>
+ * A stride scheduler gives each thread a <i>stride</i> inversely proportional
+ * to its tickets, and a <i>pass</i> that advances by one stride each time the
+ * thread is granted access. The waiting thread with the lowest pass is always
+ * dequeued next. Over any interval, each thread's share of grants differs from
+ * its share of tickets by at most about one grant, where a lottery scheduler
+ * only achieves this on average.
+ *
+ * <p>
+ * Like a lottery scheduler, tickets are transferred through locks, and the
+ * tickets of the waiting threads add to those of the owner.
+ */
+public class StrideScheduler extends TicketScheduler {
+	/**
+	 * Allocate a new stride scheduler.
+	 */
+	public StrideScheduler() {
+	}
+
+	/**
+	 * Allocate a new stride thread queue.
+	 *
+	 * @param transferPriority <tt>true</tt> if this queue should transfer
+	 * tickets from waiting threads to the owning thread.
+	 * @return a new stride thread queue.
+	 */
+	public ThreadQueue newThreadQueue(boolean transferPriority) {
+		return new StrideQueue(transferPriority);
+	}
+
+	/**
+	 * Test the stride scheduler on a private scheduler and threads that are
+	 * never forked: grants stay within one of the ticket shares, a late
+	 * arrival starts at the virtual time, a change in a waiter's tickets
+	 * rescales the rest of its pass, and a huge number of donated tickets
+	 * still advances the pass. If <tt>StrideScheduler.benchmark</tt> is set,
+	 * also compare the fairness and cost of round robin, lottery and stride
+	 * scheduling.
+	 */
+	public static void selfTest() {
+		StrideScheduler s = new StrideScheduler();
+
+		KThread light = new KThread().setName("light");
+		KThread heavy = new KThread().setName("heavy");
+		KThread late = new KThread().setName("late");
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// with 1 and 3 tickets, every prefix of the grants is within one
+		// grant of a 1:3 split
+		StrideQueue ready = (StrideQueue) s.newThreadQueue(false);
+		s.setPriority(heavy, 3);
+		ready.waitForAccess(light);
+		ready.waitForAccess(heavy);
+
+		int heavyWins = 0;
+		for (int i = 1; i <= 400; i++) {
+			KThread winner = ready.nextThread();
+			if (winner == heavy)
+				heavyWins++;
+			Lib.assertTrue(Math.abs(4 * heavyWins - 3 * i) <= 4);
+			ready.waitForAccess(winner);
+		}
+		Lib.assertTrue(heavyWins == 300);
+
+		// a thread arriving with pass 0 starts at the virtual time, instead
+		// of winning every grant until its pass catches up
+		StrideState lateState = (StrideState) s.getThreadState(late);
+		s.setPriority(late, 3);
+		ready.waitForAccess(late);
+		Lib.assertTrue(ready.virtualTime > 0
+				&& lateState.pass == ready.virtualTime);
+
+		int lateWins = 0;
+		for (int i = 0; i < 70; i++) {
+			KThread winner = ready.nextThread();
+			if (winner == late)
+				lateWins++;
+			ready.waitForAccess(winner);
+		}
+		Lib.assertTrue(Math.abs(lateWins - 30) <= 1);
+
+		// light has a whole stride to go; a donor doubles its tickets, which
+		// halves what is left
+		KThread winner;
+		while ((winner = ready.nextThread()) != light)
+			ready.waitForAccess(winner);
+		ready.waitForAccess(light);
+
+		StrideState lightState = (StrideState) s.getThreadState(light);
+		Lib.assertTrue(lightState.pass - ready.virtualTime == stride1);
+
+		ThreadQueue lock = s.newThreadQueue(true);
+		lock.acquire(light);
+		lock.waitForAccess(new KThread().setName("donor"));
+		Lib.assertTrue(lightState.tickets == 2 && ready.total == 8);
+		Lib.assertTrue(lightState.pass - ready.virtualTime == stride1 / 2);
+
+		// once the donor has the lock, light is back to a whole stride
+		lock.nextThread();
+		Lib.assertTrue(lightState.tickets == 1 && ready.total == 7);
+		Lib.assertTrue(lightState.pass - ready.virtualTime == stride1);
+
+		// with more than stride1 tickets donated, light's pass still advances
+		ThreadQueue crowd = s.newThreadQueue(true);
+		crowd.acquire(light);
+		for (long i = 0; i <= stride1 / priorityMaximum; i++) {
+			KThread donor = new KThread().setName("donor");
+			s.setPriority(donor, priorityMaximum);
+			crowd.waitForAccess(donor);
+		}
+		Lib.assertTrue(lightState.tickets > stride1);
+
+		long pass = lightState.pass;
+		Lib.assertTrue(ready.nextThread() == light);
+		Lib.assertTrue(lightState.pass - pass == 1);
+
+		Machine.interrupt().restore(intStatus);
+
+		if (Config.getBoolean("StrideScheduler.benchmark", false)) {
+			compare("round robin", new RoundRobinScheduler());
+			compare("lottery", new LotteryScheduler(0));
+			compare("stride", new StrideScheduler());
+		}
+	}
+
+	/**
+	 * Cycle three threads holding 1, 2 and 3 tickets through a queue of the
+	 * specified scheduler. Print the largest lag of any thread behind or
+	 * ahead of its ticket share, in grants, and the cost of one grant.
+	 */
+	private static void compare(String name, Scheduler s) {
+		int[] tickets = { 1, 2, 3 };
+		KThread[] threads = new KThread[tickets.length];
+		int[] wins = new int[tickets.length];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		ThreadQueue queue = s.newThreadQueue(false);
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread();
+			s.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		double maxLag = 0;
+		for (int g = 1; g <= 60000; g++) {
+			KThread winner = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] == winner)
+					wins[i]++;
+				maxLag = Math.max(maxLag,
+						Math.abs(wins[i] - g * tickets[i] / 6.0));
+			}
+			queue.waitForAccess(winner);
+		}
+
+		int grants = 1000000;
+		long start = System.nanoTime();
+		for (int g = 0; g < grants; g++)
+			queue.waitForAccess(queue.nextThread());
+		long elapsed = System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println("StrideScheduler: " + name + ", shares "
+				+ wins[0] + ":" + wins[1] + ":" + wins[2] + ", max lag "
+				+ Math.round(maxLag * 10) / 10.0 + " grants, "
+				+ (elapsed / grants) + " ns per grant");
+	}
+
+	/**
+	 * The stride of a thread holding a single ticket. Other strides are this
+	 * divided by the number of tickets, but at least 1: donated tickets add
+	 * up without bound, and a thread with more than <tt>stride1</tt> of them
+	 * must still advance its pass.
+	 */
+	public static final long stride1 = 1L << 40;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 *
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new StrideState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that grants access to the waiting thread with the
+	 * lowest pass.
+	 *
+	 * <p>
+	 * Waiting threads are kept in a binary min-heap ordered by pass, and by
+	 * arrival among equal passes. Each thread records its index in the heap,
+	 * so a thread whose tickets change can be moved in <i>O(log n)</i> time.
+	 * The queue's virtual time is the pass of the thread it last granted; a
+	 * thread that arrives with a lower pass is brought up to it, so time
+	 * spent blocked is not banked as credit.
+	 */
+	protected class StrideQueue extends TicketQueue {
+		StrideQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			StrideState next = (StrideState) pickNextThread();
+			if (next == null) {
+				release();
+				return null;
+			}
+
+			remove(next);
+			virtualTime = next.pass;
+			next.pass += Math.max(1, stride1 / next.tickets);
+			next.acquire(this);
+
+			return next.thread;
+		}
+
+		protected ThreadState pickNextThread() {
+			if (size == 0)
+				return null;
+
+			return heap[0];
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + " (" + heap[i].tickets + ") ");
+			System.out.println();
+		}
+
+		protected void insert(ThreadState waiter) {
+			StrideState state = (StrideState) waiter;
+
+			if (state.pass - virtualTime < 0)
+				state.pass = virtualTime;
+			state.waiting = this;
+
+			if (size == heap.length) {
+				StrideState[] newHeap = new StrideState[size * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			heap[size] = state;
+			state.index = size++;
+			siftUp(state.index);
+
+			total += state.tickets;
+		}
+
+		protected void remove(ThreadState waiter) {
+			StrideState state = (StrideState) waiter;
+			int index = state.index;
+
+			StrideState last = heap[--size];
+			heap[size] = null;
+			if (index < size) {
+				heap[index] = last;
+				last.index = index;
+				siftDown(index);
+				siftUp(last.index);
+			}
+
+			state.index = -1;
+			state.waiting = null;
+
+			total -= state.tickets;
+		}
+
+		/**
+		 * Scale the part of a waiting thread's pass still ahead of the
+		 * virtual time by the change in its stride, and move it within the
+		 * heap.
+		 */
+		protected void changeTickets(TicketState waiter, long tickets) {
+			StrideState state = (StrideState) waiter;
+
+			long remaining = state.pass - virtualTime;
+			if (remaining > 0) {
+				state.pass = virtualTime
+						+ (long) (remaining * ((double) state.tickets / tickets));
+			}
+
+			total += tickets - state.tickets;
+			siftDown(state.index);
+			siftUp(state.index);
+		}
+
+		private void siftUp(int index) {
+			StrideState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].index = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.index = index;
+		}
+
+		private void siftDown(int index) {
+			StrideState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].index = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.index = index;
+		}
+
+		/**
+		 * Passes are compared by their difference, so that they may wrap
+		 * around.
+		 */
+		private boolean before(StrideState s1, StrideState s2) {
+			long difference = s1.pass - s2.pass;
+			if (difference != 0)
+				return difference < 0;
+
+			return s1.waitStamp < s2.waitStamp;
+		}
+
+		/** The waiting threads, as a binary heap. */
+		private StrideState[] heap = new StrideState[4];
+
+		/** The number of waiting threads. */
+		private int size = 0;
+
+		/** The pass of the thread most recently granted access. */
+		private long virtualTime = 0;
+
+	}
+
+	/**
+	 * The scheduling state of a thread under a stride scheduler. Its
+	 * effective tickets determine its stride.
+	 */
+	protected class StrideState extends TicketState {
+		public StrideState(KThread thread) {
+			super(thread);
+		}
+
+		/** The pass of the associated thread. */
+		private long pass = 0;
+
+		/** This thread's index in the heap of <tt>waiting</tt>. */
+		private int index = -1;
+	}
+}
@@ -51,8 +51,15 @@ public class ThreadedKernel extends Kernel {
 		Condition2.selfTest();
 		Alarm.selfTest();
 		Communicator.selfTest();
+		Channel.selfTest();
+		ReadWriteLock.selfTest();
+		LockProfile.selfTest();
 		Semaphore.selfTest();
 		SynchList.selfTest();
+		PriorityScheduler.selfTest();
+		LotteryScheduler.selfTest();
+		StrideScheduler.selfTest();
+		MLFQScheduler.selfTest();
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
@@ -69,6 +76,14 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Lib.debug(dbgThread, "TCB pool: " + TCB.getPoolHits() + " hits, "
+				+ TCB.getPoolMisses() + " misses");
+		Lib.debug(dbgThread, "Alarm: " + alarm.getNumFired()
+				+ " callbacks fired, " + alarm.getNumCancelled() + " cancelled");
+		if (scheduler instanceof MLFQScheduler)
+			((MLFQScheduler) scheduler).printStats();
+		LockProfile.print();
+
 		Machine.halt();
 	}
 
@@ -81,6 +96,8 @@ public class ThreadedKernel extends Kernel {
 	/** Globally accessible reference to the file system. */
 	public static FileSystem fileSystem = null;
 
+	private static final char dbgThread = 't';
+
 	// dummy variables to make javac smarter
 	private static RoundRobinScheduler dummy1 = null;
 
@@ -0,0 +1,121 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+
+/**
+ * A scheduler that shares access in proportion to tickets. The
+ * <tt>priority</tt> of a thread is the number of tickets it holds itself.
+ *
+ * <p>
+ * Tickets are transferred through locks, and through joins. Unlike priorities,
+ * they add: the effective tickets of a thread are its own, plus those of every
+ * thread waiting on a queue it owns. Subclasses decide how a queue chooses
+ * among its waiting threads.
+ */
+public abstract class TicketScheduler extends PriorityScheduler {
+	/**
+	 * Allocate a new ticket scheduler.
+	 */
+	public TicketScheduler() {
+	}
+
+	/**
+	 * The minimum number of tickets a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	protected int getPriorityMinimum() {
+		return priorityMinimum;
+	}
+
+	protected int getPriorityMaximum() {
+		return priorityMaximum;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that keeps count of the tickets of its waiting
+	 * threads.
+	 */
+	protected abstract class TicketQueue extends PriorityQueue {
+		TicketQueue(boolean transferPriority) {
+			super(transferPriority);
+		}
+
+		/**
+		 * Called when the effective tickets of a thread waiting on this queue
+		 * change. The thread still holds its old tickets, and
+		 * <tt>total</tt> must be brought up to date.
+		 *
+		 * @param state the waiting thread.
+		 * @param tickets its new effective tickets.
+		 */
+		protected abstract void changeTickets(TicketState state, long tickets);
+
+		/** The tickets held by all waiting threads. */
+		protected long total = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread under a ticket scheduler.
+	 */
+	protected class TicketState extends ThreadState {
+		public TicketState(KThread thread) {
+			super(thread);
+
+			tickets = priority;
+		}
+
+		/**
+		 * Return the effective number of tickets of the associated thread,
+		 * limited to <tt>priorityMaximum</tt>.
+		 *
+		 * @return the effective tickets of the associated thread.
+		 */
+		public int getEffectivePriority() {
+			return (int) Math.min(tickets, priorityMaximum);
+		}
+
+		/**
+		 * Recompute the effective tickets. If they changed, tell the queue
+		 * this thread waits on, and pass the change on to that queue's owner.
+		 * A cycle of waiting threads (a deadlock) would otherwise grow without
+		 * bound, so the walk stops if it returns to a thread it is already
+		 * updating.
+		 */
+		protected void updateEffectivePriority() {
+			if (updating)
+				return;
+
+			long effective = priority;
+			for (Iterator<PriorityQueue> i = owned.iterator(); i.hasNext();)
+				effective += ((TicketQueue) i.next()).total;
+
+			if (effective == tickets)
+				return;
+
+			TicketQueue queue = (TicketQueue) waiting;
+			if (queue != null)
+				queue.changeTickets(this, effective);
+
+			tickets = effective;
+
+			if (queue != null && queue.transferPriority && queue.owner != null) {
+				updating = true;
+				queue.owner.updateEffectivePriority();
+				updating = false;
+			}
+		}
+
+		/** The effective tickets of the associated thread. */
+		protected long tickets;
+
+		private boolean updating = false;
+	}
+}
@@ -19,16 +19,17 @@ public class UserKernel extends ThreadedKernel {
 
     /**
      * Initialize this kernel. Creates a synchronized console and sets the
-     * processor's exception handler.
+     * exception handler of every processor.
      */
     public void initialize(String[] args) {
 	super.initialize(args);
 
 	console = new SynchConsole(Machine.console());
 	
-	Machine.processor().setExceptionHandler(new Runnable() {
-		public void run() { exceptionHandler(); }
-	    });
+	for (int cpu=0; cpu<Machine.numProcessors(); cpu++)
+	    Machine.processor(cpu).setExceptionHandler(new Runnable() {
+		    public void run() { exceptionHandler(); }
+		});
 	
 	processLock = new Lock();
 	
@@ -127,7 +128,7 @@ public class UserKernel extends ThreadedKernel {
     /** Guards access to the physical page free list. */
     public static Lock memoryLock;
     /** The physical page free list. */
-    public static LinkedList freePages = new LinkedList();
+    public static LinkedList<Integer> freePages = new LinkedList<Integer>();
 
     // dummy variables to make javac smarter
     private static Coff dummy1 = null;
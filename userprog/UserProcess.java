@@ -368,7 +368,7 @@ public class UserProcess {
 	pageTable = new TranslationEntry[numPages];
 
 	for (int vpn=0; vpn<numPages; vpn++) {
-	    int ppn = ((Integer)UserKernel.freePages.removeFirst()).intValue();
+	    int ppn = UserKernel.freePages.removeFirst().intValue();
 
 	    pageTable[vpn] = new TranslationEntry(vpn, ppn,
 						  true, false, false, false);
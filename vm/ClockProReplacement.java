@@ -0,0 +1,298 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * The CLOCK-Pro algorithm. Resident pages are either hot, if they were used
+ * again soon after being loaded, or cold. Cold pages are evicted first, and
+ * a cold page stays in its test period, even after it is evicted, until it
+ * has been in memory or out of it for about as long as the coldest hot page
+ * has gone unused. A cold page that is used again in its test period becomes
+ * hot, and the coldest hot page becomes cold in its place.
+ *
+ * <p>
+ * Every page, resident or not, is kept on one circular list, ordered by when
+ * it was last loaded or moved. Three hands sweep the list: the cold hand
+ * finds a victim among the cold pages, the hot hand turns unused hot pages
+ * cold, and the test hand ends test periods so that at most as many evicted
+ * pages are remembered as there are frames. The number of frames for cold
+ * pages adapts: it grows when a page is used again in its test period, and
+ * shrinks when a test period ends without one.
+ */
+public class ClockProReplacement extends PageReplacement {
+	/**
+	 * Allocate a new CLOCK-Pro policy.
+	 */
+	public ClockProReplacement() {
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		numFrames = frames.getNumFrames();
+		byFrame = new Entry[numFrames];
+	}
+
+	public void pageLoaded(int ppn) {
+		Object page = frames.getPage(ppn);
+		Entry entry = byPage.get(page);
+
+		if (entry != null) {
+			// faulted again in its test period
+			Lib.assertTrue(entry.ppn < 0);
+			growCold();
+
+			remove(entry);
+			numNonresident--;
+			entry.ppn = ppn;
+			entry.hot = true;
+			entry.test = false;
+			insert(entry);
+			numHot++;
+		}
+		else {
+			entry = new Entry(page, ppn);
+
+			// until memory first fills, pages start out hot
+			if (!full && numHot < numFrames - coldTarget) {
+				entry.hot = true;
+				numHot++;
+			}
+			else {
+				entry.test = true;
+				numCold++;
+			}
+
+			insert(entry);
+			byPage.put(page, entry);
+		}
+
+		byFrame[ppn] = entry;
+		balanceHot();
+	}
+
+	public void pageFreed(int ppn) {
+		Entry entry = byFrame[ppn];
+		if (entry == null)
+			return;
+
+		byFrame[ppn] = null;
+		if (entry.hot)
+			numHot--;
+		else
+			numCold--;
+		remove(entry);
+		byPage.remove(entry.page);
+	}
+
+	public int selectVictim() {
+		full = true;
+
+		int scanned = 0;
+		while (true) {
+			Entry entry = handCold;
+			handCold = handCold.next;
+
+			if (!entry.hot && entry.ppn >= 0) {
+				if (frames.isUsed(entry.ppn)) {
+					frames.clearUsed(entry.ppn);
+
+					if (entry.test) {
+						// used again in its test period
+						growCold();
+						entry.hot = true;
+						entry.test = false;
+						numCold--;
+						numHot++;
+					}
+					else {
+						entry.test = true;
+					}
+
+					remove(entry);
+					insert(entry);
+					balanceHot();
+				}
+				else if (frames.isEvictable(entry.ppn)) {
+					int victim = entry.ppn;
+					byFrame[victim] = null;
+					numCold--;
+
+					if (entry.test) {
+						// remember it until its test period ends
+						entry.ppn = -1;
+						numNonresident++;
+						while (numNonresident > numFrames)
+							runHandTest();
+					}
+					else {
+						remove(entry);
+						byPage.remove(entry.page);
+					}
+
+					return victim;
+				}
+			}
+
+			// no cold page could be evicted; make another one cold
+			if (++scanned > 2 * byPage.size()) {
+				runHandHot();
+				scanned = 0;
+			}
+		}
+	}
+
+	public int getHand() {
+		if (handCold != null && handCold.ppn >= 0)
+			return handCold.ppn;
+		return 0;
+	}
+
+	/**
+	 * Turn hot pages cold until there are no more than there are frames
+	 * for them.
+	 */
+	private void balanceHot() {
+		while (numHot > numFrames - coldTarget)
+			runHandHot();
+	}
+
+	/**
+	 * Move the hot hand until it turns a hot page that has not been used
+	 * since the hand last passed it cold. On the way, end the test periods
+	 * of the cold pages it passes, and forget the evicted ones.
+	 */
+	private void runHandHot() {
+		while (true) {
+			Entry entry = handHot;
+			handHot = handHot.next;
+
+			if (entry.hot) {
+				if (frames.isUsed(entry.ppn)) {
+					frames.clearUsed(entry.ppn);
+				}
+				else {
+					entry.hot = false;
+					numHot--;
+					numCold++;
+					return;
+				}
+			}
+			else if (entry.test) {
+				endTest(entry);
+			}
+		}
+	}
+
+	/**
+	 * Move the test hand until it forgets an evicted page, ending the test
+	 * periods of the cold pages it passes.
+	 */
+	private void runHandTest() {
+		while (true) {
+			Entry entry = handTest;
+			handTest = handTest.next;
+
+			if (!entry.hot && entry.test) {
+				boolean evicted = entry.ppn < 0;
+				endTest(entry);
+				if (evicted)
+					return;
+			}
+		}
+	}
+
+	/**
+	 * End the test period of a cold page that was not used again in it,
+	 * forgetting the page if it was evicted.
+	 */
+	private void endTest(Entry entry) {
+		entry.test = false;
+		coldTarget = Math.max(1, coldTarget - 1);
+
+		if (entry.ppn < 0) {
+			remove(entry);
+			byPage.remove(entry.page);
+			numNonresident--;
+		}
+	}
+
+	private void growCold() {
+		coldTarget = Math.min(numFrames - 1, coldTarget + 1);
+	}
+
+	/**
+	 * Insert an entry at the head of the list, which is just behind the hot
+	 * hand, the hand that trails the others.
+	 */
+	private void insert(Entry entry) {
+		if (handHot == null) {
+			entry.next = entry.prev = entry;
+			handHot = handCold = handTest = entry;
+			return;
+		}
+
+		entry.next = handHot;
+		entry.prev = handHot.prev;
+		entry.prev.next = entry;
+		handHot.prev = entry;
+	}
+
+	/**
+	 * Take an entry off the list, moving any hand on it to the next entry.
+	 */
+	private void remove(Entry entry) {
+		if (entry.next == entry) {
+			handHot = handCold = handTest = null;
+			return;
+		}
+
+		if (handHot == entry)
+			handHot = entry.next;
+		if (handCold == entry)
+			handCold = entry.next;
+		if (handTest == entry)
+			handTest = entry.next;
+
+		entry.prev.next = entry.next;
+		entry.next.prev = entry.prev;
+	}
+
+	private static class Entry {
+		Entry(Object page, int ppn) {
+			this.page = page;
+			this.ppn = ppn;
+		}
+
+		Object page;
+
+		/** The frame holding the page, or -1 if it was evicted. */
+		int ppn;
+
+		boolean hot = false;
+
+		boolean test = false;
+
+		Entry prev, next;
+	}
+
+	private int numFrames;
+
+	/** The number of frames cold pages should have. */
+	private int coldTarget = 1;
+
+	private int numHot = 0, numCold = 0, numNonresident = 0;
+
+	/** Whether a page has been evicted yet. */
+	private boolean full = false;
+
+	/** The entry for each page on the list. */
+	private HashMap<Object, Entry> byPage = new HashMap<Object, Entry>();
+
+	/** The entry for the page in each frame. */
+	private Entry[] byFrame;
+
+	private Entry handHot = null, handCold = null, handTest = null;
+}
@@ -0,0 +1,43 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The clock algorithm. A hand sweeps the frames in order, clearing used
+ * bits, and evicts the first evictable frame whose used bit is already
+ * clear.
+ */
+public class ClockReplacement extends PageReplacement {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockReplacement() {
+	}
+
+	public void pageLoaded(int ppn) {
+	}
+
+	public int selectVictim() {
+		int numFrames = frames.getNumFrames();
+
+		while (true) {
+			if (frames.isUsed(hand))
+				frames.clearUsed(hand);
+			else if (frames.isEvictable(hand))
+				break;
+
+			hand = (hand + 1) % numFrames;
+		}
+
+		int victim = hand;
+		hand = (hand + 1) % numFrames;
+
+		return victim;
+	}
+
+	public int getHand() {
+		return hand;
+	}
+
+	private int hand = 0;
+}
@@ -0,0 +1,186 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * A kernel thread that writes dirty pages to swap ahead of time, so that the
+ * replacement policy almost always finds a clean victim and a page fault does
+ * not have to wait for a write.
+ *
+ * <p>
+ * Every <tt>PageCleaner.interval</tt> ticks, the cleaner counts the frames
+ * that can be reused without a write: free frames, and resident pages that
+ * are clean, unused and unpinned. If there are fewer than
+ * <tt>PageCleaner.lowWatermark</tt>, it cleans pages, starting where the
+ * replacement policy looks next, until there are
+ * <tt>PageCleaner.highWatermark</tt>.
+ *
+ * <p>
+ * The cleaner shares the swap file with page faults, so it throttles itself.
+ * In each interval it writes at most <tt>PageCleaner.maxWrites</tt> pages,
+ * less the pages that faults wrote since the last interval.
+ *
+ * <p>
+ * The cleaner does not take <tt>VMKernel.bigLock</tt>. A page fault holds it
+ * across its reads and writes, which is when the cleaner gets to run.
+ * Instead, the cleaner picks a page, copies it and marks it clean with
+ * interrupts disabled, so no other thread runs in between. Frames that a
+ * fault is filling are pinned, so the cleaner leaves them alone. The
+ * replacement policy skips a frame until the cleaner's write to its slot is
+ * done, so the page cannot be evicted and read back first. If the process
+ * writes to the page in the meantime, the page is dirty again and is written
+ * again later.
+ */
+public class PageCleaner implements Runnable {
+	/**
+	 * Allocate a new page cleaner, configured from the Nachos configuration.
+	 */
+	public PageCleaner() {
+		int numPhysPages = Machine.processor().getNumPhysPages();
+
+		interval = Config.getInteger("PageCleaner.interval", 2000);
+		maxWrites = Config.getInteger("PageCleaner.maxWrites", 4);
+		lowWatermark = Config.getInteger("PageCleaner.lowWatermark",
+				Math.max(1, numPhysPages / 8));
+		highWatermark = Config.getInteger("PageCleaner.highWatermark",
+				Math.max(lowWatermark, numPhysPages / 4));
+
+		Lib.assertTrue(interval > 0 && maxWrites > 0);
+		Lib.assertTrue(lowWatermark <= highWatermark);
+	}
+
+	/**
+	 * Clean pages forever.
+	 */
+	public void run() {
+		long lastWrites = VMKernel.numSwapWrites;
+
+		while (true) {
+			ThreadedKernel.alarm.waitUntil(interval);
+			numWakeups++;
+
+			long faultWrites = VMKernel.numSwapWrites - lastWrites;
+			int budget = maxWrites - (int) Math.min(faultWrites, maxWrites);
+
+			int written = 0;
+			if (countClean() < lowWatermark) {
+				while (written < budget && countClean() < highWatermark) {
+					if (!cleanOne())
+						break;
+					written++;
+				}
+				if (written == budget && countClean() < highWatermark)
+					numThrottled++;
+			}
+
+			lastWrites = VMKernel.numSwapWrites;
+		}
+	}
+
+	/**
+	 * Return the number of frames that can be reused without a write.
+	 */
+	private int countClean() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int clean = UserKernel.freePages.size();
+		if (clean < highWatermark) {
+			for (int ppn = 0; ppn < VMKernel.invertedPageTable.length; ppn++) {
+				VMKernel.memInfo info = VMKernel.invertedPageTable[ppn];
+				if (info != null && info.te.valid && !info.pinned
+						&& !info.cleaning && !info.te.used
+						&& (info.te.readOnly || !info.te.dirty))
+					clean++;
+			}
+		}
+
+		Machine.interrupt().restore(intStatus);
+
+		return clean;
+	}
+
+	/**
+	 * Write the first dirty, unpinned page to swap, starting at the frame the
+	 * replacement policy looks at next, and preferring one that is unused.
+	 *
+	 * @return <tt>true</tt> if a page was written.
+	 */
+	private boolean cleanOne() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		// pages written through a TLB entry are only dirty in the TLB so far
+		for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+			VMProcess.syncTLB(Machine.processor(cpu));
+
+		VMKernel.memInfo victim = null;
+		int numFrames = VMKernel.invertedPageTable.length;
+		for (int i = 0; i < numFrames; i++) {
+			int ppn = (VMKernel.replacement.getHand() + i) % numFrames;
+			VMKernel.memInfo info = VMKernel.invertedPageTable[ppn];
+			if (info == null || !info.te.valid || info.pinned
+					|| info.cleaning || info.te.readOnly || !info.te.dirty)
+				continue;
+
+			if (!info.te.used) {
+				victim = info;
+				break;
+			}
+			if (victim == null)
+				victim = info;
+		}
+
+		if (victim == null) {
+			Machine.interrupt().restore(intStatus);
+			return false;
+		}
+
+		TranslationEntry te = victim.te;
+		byte[] buffer = new byte[pageSize];
+		System.arraycopy(Machine.processor().getMemory(), te.ppn * pageSize,
+				buffer, 0, pageSize);
+		int spn = VMKernel.getSwapSlot(victim.owner, te.vpn);
+
+		te.dirty = false;
+		victim.cleaning = true;
+
+		Machine.interrupt().restore(intStatus);
+
+		VMKernel.swapFile.write(spn * pageSize, buffer, 0, pageSize);
+		VMKernel.numSwapWrites++;
+		numCleaned++;
+
+		victim.cleaning = false;
+
+		return true;
+	}
+
+	/**
+	 * Print the pages this cleaner wrote, how often it woke up, and how often
+	 * it stopped short of the high watermark to leave the swap file to page
+	 * faults, under the <tt>v</tt> debug flag.
+	 */
+	public void printStats() {
+		Lib.debug(dbgVM, "Page cleaner: " + numCleaned + " pages written, "
+				+ numWakeups + " wakeups, " + numThrottled + " throttled");
+	}
+
+	private int interval;
+
+	private int maxWrites;
+
+	private int lowWatermark;
+
+	private int highWatermark;
+
+	private long numCleaned = 0;
+
+	private long numWakeups = 0;
+
+	private long numThrottled = 0;
+
+	private static final int pageSize = Processor.pageSize;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,359 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.HashMap;
+
+/**
+ * A page replacement policy, which chooses the frame to evict when a page
+ * fault finds no free frame. <tt>VMKernel</tt> loads the policy named by
+ * <tt>VMKernel.replacement</tt>, by default <tt>ClockReplacement</tt>.
+ *
+ * <p>
+ * A policy sees the frames only through a <tt>Frames</tt> object, so the same
+ * policy can run in the kernel or replay a trace. It is told when a frame gets
+ * a new page and when a frame is freed, and chooses victims among the frames
+ * that are evictable.
+ *
+ * <p>
+ * If <tt>PageReplacement.trace</tt> is set, the kernel records every TLB miss,
+ * and every process exit, as a reference trace. When the kernel terminates,
+ * the trace is replayed under each policy and the faults are printed. With a
+ * two-entry TLB (<tt>Processor.tlbSize = 2</tt>), a TLB miss happens almost
+ * every time a process moves to a different page, so the trace is close to
+ * the full page reference string.
+ */
+public abstract class PageReplacement {
+	/**
+	 * The frames a policy chooses among.
+	 */
+	public interface Frames {
+		/**
+		 * Return the number of frames.
+		 *
+		 * @return the number of frames.
+		 */
+		public int getNumFrames();
+
+		/**
+		 * Return the page in a frame. Two calls return equal objects if and
+		 * only if they are for the same page of the same process, even if the
+		 * page was evicted in between.
+		 *
+		 * @param ppn the frame.
+		 * @return the page in the frame, or <tt>null</tt> if there is none.
+		 */
+		public Object getPage(int ppn);
+
+		/**
+		 * Test whether the page in a frame was used since its used bit was
+		 * last cleared.
+		 *
+		 * @param ppn the frame.
+		 * @return <tt>true</tt> if the page was used.
+		 */
+		public boolean isUsed(int ppn);
+
+		/**
+		 * Clear the used bit of the page in a frame.
+		 *
+		 * @param ppn the frame.
+		 */
+		public void clearUsed(int ppn);
+
+		/**
+		 * Test whether the page in a frame must be written before it can be
+		 * evicted.
+		 *
+		 * @param ppn the frame.
+		 * @return <tt>true</tt> if the page is dirty.
+		 */
+		public boolean isDirty(int ppn);
+
+		/**
+		 * Test whether the page in a frame may be evicted now.
+		 *
+		 * @param ppn the frame.
+		 * @return <tt>false</tt> if the frame is pinned or being written.
+		 */
+		public boolean isEvictable(int ppn);
+
+		/**
+		 * Return the current time, in ticks.
+		 *
+		 * @return the current time.
+		 */
+		public long getTime();
+	}
+
+	/**
+	 * Allocate a new page replacement policy.
+	 */
+	public PageReplacement() {
+	}
+
+	/**
+	 * Attach this policy to the frames it will choose among. Every frame is
+	 * initially empty.
+	 *
+	 * @param frames the frames.
+	 */
+	public void initialize(Frames frames) {
+		this.frames = frames;
+	}
+
+	/**
+	 * Called when a frame has been given a new page.
+	 *
+	 * @param ppn the frame.
+	 */
+	public abstract void pageLoaded(int ppn);
+
+	/**
+	 * Called when the page in a frame is gone, and the frame is free.
+	 *
+	 * @param ppn the frame.
+	 */
+	public void pageFreed(int ppn) {
+	}
+
+	/**
+	 * Choose the frame to evict. Only called when no frame is free. The
+	 * chosen frame is given a new page next.
+	 *
+	 * @return the frame to evict.
+	 */
+	public abstract int selectVictim();
+
+	/**
+	 * Return the frame this policy will look at first for its next victim.
+	 * The page cleaner starts there.
+	 *
+	 * @return the frame looked at next.
+	 */
+	public int getHand() {
+		return 0;
+	}
+
+	/** The frames this policy chooses among. */
+	protected Frames frames;
+
+	/**
+	 * Record a reference to a page, if tracing.
+	 *
+	 * @param pid the process that referenced the page.
+	 * @param vpn the page referenced.
+	 */
+	public static void record(int pid, int vpn) {
+		if (!tracing)
+			return;
+
+		if (traceLength == traceTimes.length) {
+			long[] times = new long[traceLength * 2];
+			long[] pages = new long[traceLength * 2];
+			System.arraycopy(traceTimes, 0, times, 0, traceLength);
+			System.arraycopy(tracePages, 0, pages, 0, traceLength);
+			traceTimes = times;
+			tracePages = pages;
+		}
+
+		traceTimes[traceLength] = Machine.timer().getTime();
+		tracePages[traceLength] = key(pid, vpn);
+		traceLength++;
+	}
+
+	/**
+	 * Record that a process exited and its frames were freed, if tracing.
+	 *
+	 * @param pid the process that exited.
+	 */
+	public static void recordExit(int pid) {
+		record(pid, exit);
+	}
+
+	/**
+	 * If tracing, replay the trace under each policy, with as many frames as
+	 * the machine has, and print the faults each takes.
+	 */
+	public static void compare() {
+		if (!tracing)
+			return;
+
+		int numFrames = Machine.processor().getNumPhysPages();
+		System.out.println("PageReplacement: " + traceLength
+				+ " references, " + numFrames + " frames");
+
+		for (int i = 0; i < policies.length; i++) {
+			PageReplacement policy = (PageReplacement) Lib
+					.constructObject("nachos.vm." + policies[i]);
+			long faults = replay(policy, numFrames, traceTimes, tracePages,
+					traceLength);
+			System.out.println("  " + policies[i] + ": " + faults + " faults");
+		}
+	}
+
+	/**
+	 * Replay a trace under a policy, and return the number of faults.
+	 */
+	private static long replay(PageReplacement policy, int numFrames,
+			long[] times, long[] pages, int length) {
+		TraceFrames frames = new TraceFrames(numFrames);
+		policy.initialize(frames);
+
+		HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+		int[] free = new int[numFrames];
+		int numFree = numFrames;
+		for (int i = 0; i < numFrames; i++)
+			free[i] = numFrames - 1 - i;
+
+		long faults = 0;
+		for (int i = 0; i < length; i++) {
+			frames.time = times[i];
+			Long page = new Long(pages[i]);
+
+			if ((int) pages[i] == exit) {
+				for (int ppn = 0; ppn < numFrames; ppn++) {
+					if (frames.pages[ppn] != null
+							&& frames.pages[ppn] >>> 32 == pages[i] >>> 32) {
+						resident.remove(frames.pages[ppn]);
+						frames.pages[ppn] = null;
+						policy.pageFreed(ppn);
+						free[numFree++] = ppn;
+					}
+				}
+				continue;
+			}
+
+			Integer ppn = resident.get(page);
+			if (ppn == null) {
+				faults++;
+
+				if (numFree > 0) {
+					ppn = free[--numFree];
+				}
+				else {
+					ppn = policy.selectVictim();
+					Lib.assertTrue(frames.pages[ppn] != null);
+					resident.remove(frames.pages[ppn]);
+				}
+
+				frames.pages[ppn] = page;
+				resident.put(page, ppn);
+				policy.pageLoaded(ppn);
+			}
+
+			frames.used[ppn] = true;
+		}
+
+		return faults;
+	}
+
+	private static long key(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * The frames of a trace being replayed. Pages are never dirty, and always
+	 * evictable.
+	 */
+	private static class TraceFrames implements Frames {
+		TraceFrames(int numFrames) {
+			pages = new Long[numFrames];
+			used = new boolean[numFrames];
+		}
+
+		public int getNumFrames() {
+			return pages.length;
+		}
+
+		public Object getPage(int ppn) {
+			return pages[ppn];
+		}
+
+		public boolean isUsed(int ppn) {
+			return used[ppn];
+		}
+
+		public void clearUsed(int ppn) {
+			used[ppn] = false;
+		}
+
+		public boolean isDirty(int ppn) {
+			return false;
+		}
+
+		public boolean isEvictable(int ppn) {
+			return pages[ppn] != null;
+		}
+
+		public long getTime() {
+			return time;
+		}
+
+		private Long[] pages;
+
+		private boolean[] used;
+
+		private long time = 0;
+	}
+
+	/**
+	 * Replay synthetic traces under each policy. A loop that fits in memory
+	 * only takes a fault per page. A loop one page larger than memory faults
+	 * on every reference under the clock, which evicts the page that is
+	 * about to be used next, but the scan-resistant policies keep most of the
+	 * loop resident.
+	 */
+	public static void selfTest() {
+		int numFrames = 8;
+
+		long[] fits = loop(numFrames - 2, 60);
+		long[] larger = loop(numFrames + 1, 900);
+		long[] times = new long[larger.length];
+		for (int i = 0; i < times.length; i++)
+			times[i] = i * 100;
+
+		for (int i = 0; i < policies.length; i++) {
+			PageReplacement policy = (PageReplacement) Lib
+					.constructObject("nachos.vm." + policies[i]);
+			Lib.assertTrue(replay(policy, numFrames, times, fits, fits.length)
+					== numFrames - 2);
+
+			policy = (PageReplacement) Lib.constructObject("nachos.vm."
+					+ policies[i]);
+			long faults = replay(policy, numFrames, times, larger,
+					larger.length);
+			if (i < 2)
+				Lib.assertTrue(faults == larger.length);
+			else
+				Lib.assertTrue(faults < larger.length / 2);
+		}
+	}
+
+	/**
+	 * Return <i>length</i> references looping over <i>numPages</i> pages of
+	 * one process.
+	 */
+	private static long[] loop(int numPages, int length) {
+		long[] pages = new long[length];
+		for (int i = 0; i < length; i++)
+			pages[i] = key(1, i % numPages);
+		return pages;
+	}
+
+	/** The policies compared, by class name; the first two are clocks. */
+	private static final String[] policies = { "ClockReplacement",
+			"WSClockReplacement", "ClockProReplacement", "TwoQReplacement" };
+
+	/** The page number that marks a process exit in a trace. */
+	private static final int exit = -1;
+
+	private static final boolean tracing = Config.getBoolean(
+			"PageReplacement.trace", false);
+
+	private static long[] traceTimes = new long[1024];
+
+	private static long[] tracePages = new long[1024];
+
+	private static int traceLength = 0;
+}
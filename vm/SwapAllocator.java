@@ -0,0 +1,232 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * Allocates page-sized slots in the swap file, and reuses them once they are
+ * freed. The swap file only grows when every slot below its end is in use.
+ *
+ * <p>
+ * A caller can name a preferred slot, such as the one after the slot holding
+ * the previous virtual page, so that neighbouring pages end up in
+ * neighbouring slots and can be read back in sequence. Otherwise a new slot
+ * is taken from the start of a free run of at least <tt>extent</tt> slots,
+ * leaving room after it for the pages that follow. Only if there is no such
+ * run are smaller holes filled, before the file grows.
+ */
+public class SwapAllocator {
+	/**
+	 * Allocate a new swap allocator, with every slot free.
+	 */
+	public SwapAllocator() {
+	}
+
+	/**
+	 * Allocate a slot.
+	 *
+	 * @param preferred the slot to use if it is free, or -1 for none.
+	 * @return the slot number allocated.
+	 */
+	public int allocate(int preferred) {
+		int spn;
+
+		if (preferred >= 0 && preferred <= numSlots && !isUsed(preferred)) {
+			spn = preferred;
+		}
+		else {
+			spn = findRun(extent);
+			if (spn < 0)
+				spn = findRun(1);
+			if (spn < 0)
+				spn = numSlots;
+		}
+
+		if (spn < numSlots)
+			numReused++;
+		else
+			numSlots = spn + 1;
+
+		setUsed(spn, true);
+		numUsed++;
+		if (spn == preferred)
+			numPreferred++;
+		numAllocated++;
+
+		return spn;
+	}
+
+	/**
+	 * Free a slot, so that it can be allocated again.
+	 *
+	 * @param spn the slot to free.
+	 */
+	public void free(int spn) {
+		Lib.assertTrue(spn >= 0 && spn < numSlots && isUsed(spn));
+
+		setUsed(spn, false);
+		numUsed--;
+		if (spn < firstFree)
+			firstFree = spn;
+	}
+
+	/**
+	 * Return the number of slots in use.
+	 *
+	 * @return the number of slots in use.
+	 */
+	public int getNumUsed() {
+		return numUsed;
+	}
+
+	/**
+	 * Return the number of slots the swap file has grown to.
+	 *
+	 * @return one more than the highest slot ever allocated.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/**
+	 * Return the number of runs of free slots below the end of the swap
+	 * file.
+	 *
+	 * @return the number of free runs.
+	 */
+	public int getNumFreeRuns() {
+		int runs = 0;
+		for (int spn = 0; spn < numSlots; spn++) {
+			if (!isUsed(spn) && (spn == 0 || isUsed(spn - 1)))
+				runs++;
+		}
+		return runs;
+	}
+
+	/**
+	 * Return the length of the longest run of free slots below the end of
+	 * the swap file.
+	 *
+	 * @return the length of the longest free run.
+	 */
+	public int getLargestFreeRun() {
+		int largest = 0, run = 0;
+		for (int spn = 0; spn < numSlots; spn++) {
+			run = isUsed(spn) ? 0 : run + 1;
+			largest = Math.max(largest, run);
+		}
+		return largest;
+	}
+
+	/**
+	 * Print occupancy and fragmentation under the <tt>v</tt> debug flag.
+	 * Fragmentation is the share of free slots outside the largest free run.
+	 */
+	public void printStats() {
+		int free = numSlots - numUsed;
+		int largest = getLargestFreeRun();
+
+		Lib.debug(dbgVM, "Swap: " + numUsed + " of " + numSlots
+				+ " slots used, " + numAllocated + " allocated, " + numReused
+				+ " reused, " + numPreferred + " next to a neighbour");
+		Lib.debug(dbgVM, "Swap: " + getNumFreeRuns() + " free runs, largest "
+				+ largest + ", fragmentation "
+				+ (free == 0 ? 0 : 100 * (free - largest) / free) + "%");
+	}
+
+	/**
+	 * Return the first slot of the first free run of at least <i>length</i>
+	 * slots below the end of the swap file, or -1 if there is none.
+	 */
+	private int findRun(int length) {
+		while (firstFree < numSlots && isUsed(firstFree))
+			firstFree++;
+
+		int start = -1;
+		for (int spn = firstFree; spn < numSlots; spn++) {
+			if (isUsed(spn)) {
+				start = -1;
+			}
+			else {
+				if (start < 0)
+					start = spn;
+				if (spn - start + 1 == length)
+					return start;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean isUsed(int spn) {
+		return spn / 64 < used.length && (used[spn / 64] & (1L << spn)) != 0;
+	}
+
+	private void setUsed(int spn, boolean value) {
+		if (spn / 64 >= used.length) {
+			long[] larger = new long[Math.max(used.length * 2, spn / 64 + 1)];
+			System.arraycopy(used, 0, larger, 0, used.length);
+			used = larger;
+		}
+
+		if (value)
+			used[spn / 64] |= 1L << spn;
+		else
+			used[spn / 64] &= ~(1L << spn);
+	}
+
+	/**
+	 * Test preferred slots, runs, hole filling and growth.
+	 */
+	public static void selfTest() {
+		SwapAllocator swap = new SwapAllocator();
+
+		// one process's pages go next to each other
+		for (int i = 0; i < 4; i++)
+			Lib.assertTrue(swap.allocate(i == 0 ? -1 : i) == i);
+
+		// a new run starts after them, leaving no gap
+		Lib.assertTrue(swap.allocate(-1) == 4);
+		Lib.assertTrue(swap.allocate(5) == 5);
+
+		// freed slots are reused before the file grows
+		swap.free(1);
+		swap.free(2);
+		Lib.assertTrue(swap.getNumFreeRuns() == 1
+				&& swap.getLargestFreeRun() == 2);
+		Lib.assertTrue(swap.allocate(-1) == 1);
+		Lib.assertTrue(swap.allocate(0) == 2);
+		Lib.assertTrue(swap.allocate(-1) == 6);
+		Lib.assertTrue(swap.getNumUsed() == 7 && swap.getNumSlots() == 7);
+
+		// a big enough run is taken ahead of a lower, smaller hole
+		for (int spn = 7; spn < 20; spn++)
+			swap.allocate(spn);
+		swap.free(1);
+		for (int spn = 10; spn < 18; spn++)
+			swap.free(spn);
+		Lib.assertTrue(swap.allocate(-1) == 10);
+		Lib.assertTrue(swap.allocate(-1) == 1);
+	}
+
+	/** The number of free slots to look for when not given a preference. */
+	private static final int extent = 8;
+
+	/** Bit <i>s</i> is set if slot <i>s</i> is in use. */
+	private long[] used = new long[1];
+
+	/** One more than the highest slot ever allocated. */
+	private int numSlots = 0;
+
+	/** No slot below this one is free. */
+	private int firstFree = 0;
+
+	private int numUsed = 0;
+
+	private long numAllocated = 0;
+
+	private long numReused = 0;
+
+	private long numPreferred = 0;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,131 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * The 2Q algorithm. A page starts in <tt>A1in</tt>, a FIFO queue holding a
+ * quarter of the frames. When it falls off the end, it is evicted, and it is
+ * remembered in <tt>A1out</tt>, which holds the pages of half as many frames
+ * as there are. A page that faults again while in <tt>A1out</tt> has been
+ * used more than once over a long time, and goes to <tt>Am</tt>, a clock
+ * queue that holds the rest of the frames. Pages that are only used once,
+ * such as those of a scan, pass through <tt>A1in</tt> without disturbing the
+ * pages in <tt>Am</tt>.
+ */
+public class TwoQReplacement extends PageReplacement {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQReplacement() {
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		int numFrames = frames.getNumFrames();
+		maxIn = Math.max(1, numFrames / 4);
+		maxOut = Math.max(1, numFrames / 2);
+	}
+
+	public void pageLoaded(int ppn) {
+		if (out.remove(frames.getPage(ppn)))
+			am.add(ppn);
+		else
+			in.add(ppn);
+	}
+
+	public void pageFreed(int ppn) {
+		if (!in.remove(new Integer(ppn)))
+			am.remove(new Integer(ppn));
+	}
+
+	public int selectVictim() {
+		int victim = -1;
+
+		if (in.size() > maxIn || am.isEmpty())
+			victim = evictIn();
+		if (victim < 0)
+			victim = evictAm();
+		if (victim < 0)
+			victim = evictIn();
+
+		// every frame is pinned or being written; keep trying until one is not
+		while (victim < 0) {
+			victim = evictAm();
+			if (victim < 0)
+				victim = evictIn();
+		}
+
+		return victim;
+	}
+
+	public int getHand() {
+		if (!in.isEmpty())
+			return in.getFirst();
+		if (!am.isEmpty())
+			return am.getFirst();
+		return 0;
+	}
+
+	/**
+	 * Evict the oldest evictable page in <tt>A1in</tt>, remembering it in
+	 * <tt>A1out</tt>.
+	 */
+	private int evictIn() {
+		for (Iterator<Integer> i = in.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (frames.isEvictable(ppn)) {
+				i.remove();
+
+				out.add(frames.getPage(ppn));
+				if (out.size() > maxOut) {
+					Iterator<Object> oldest = out.iterator();
+					oldest.next();
+					oldest.remove();
+				}
+
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Evict the first evictable page in <tt>Am</tt> that has not been used
+	 * since it was last passed over, moving the ones that have to the back.
+	 */
+	private int evictAm() {
+		for (int i = 0; i < 2 * am.size(); i++) {
+			int ppn = am.removeFirst();
+			if (frames.isUsed(ppn)) {
+				frames.clearUsed(ppn);
+			}
+			else if (frames.isEvictable(ppn)) {
+				return ppn;
+			}
+			am.addLast(ppn);
+		}
+
+		return -1;
+	}
+
+	/** The most frames <tt>A1in</tt> should hold. */
+	private int maxIn;
+
+	/** The most pages <tt>A1out</tt> remembers. */
+	private int maxOut;
+
+	/** The frames holding pages used once recently, oldest first. */
+	private LinkedList<Integer> in = new LinkedList<Integer>();
+
+	/** The pages recently evicted from <tt>A1in</tt>, oldest first. */
+	private LinkedHashSet<Object> out = new LinkedHashSet<Object>();
+
+	/** The frames holding pages used more than once, in clock order. */
+	private LinkedList<Integer> am = new LinkedList<Integer>();
+}
@@ -24,16 +24,22 @@ public class VMKernel extends UserKernel {
 		super.initialize(args);
 
 		swapList = new LinkedList<Integer>();
+		swapAllocator = new SwapAllocator();
 		
-		bigLock = new Lock(); 
+		bigLock = new ReadWriteLock(); 
 		pinLock = new Lock();
 		pinCond = new Condition(pinLock);
+		shootdownDone = new Semaphore(0);
 
 		//creates an OpenFile called swapFile 
 		swapFile = ThreadedKernel.fileSystem.open(nameOfSwap, true);
 		
 		// Initialize size of inverted Page table to physical memory
 		invertedPageTable = new memInfo[Machine.processor().getNumPhysPages()];  
+
+		replacement = (PageReplacement) Lib.constructObject(Config.getString(
+				"VMKernel.replacement", "nachos.vm.ClockReplacement"));
+		replacement.initialize(new LiveFrames());
 	}
 
 	/**
@@ -41,12 +47,20 @@ public class VMKernel extends UserKernel {
 	 */
 	public void selfTest() {
 		super.selfTest();
+
+		SwapAllocator.selfTest();
+		PageReplacement.selfTest();
 	}
 
 	/**
 	 * Start running user programs.
 	 */
 	public void run() {
+		if (Config.getBoolean("PageCleaner.enabled", true)) {
+			pageCleaner = new PageCleaner();
+			new KThread(pageCleaner).setName("page cleaner").fork();
+		}
+
 		super.run();
 	}
 
@@ -54,6 +68,18 @@ public class VMKernel extends UserKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		Processor processor = Machine.processor();
+		for (int set = 0; set < processor.getTLBNumSets(); set++)
+			Lib.debug(dbgVM, "TLB set " + set + ": "
+					+ processor.getTLBHits(set) + " hits, "
+					+ processor.getTLBMisses(set) + " misses");
+		swapAllocator.printStats();
+		VMProcess.printStats();
+		if (pageCleaner != null)
+			pageCleaner.printStats();
+		Lib.debug(dbgVM, "Swap writes: " + numSwapWrites);
+		PageReplacement.compare();
+
 		super.terminate();
 	}
 
@@ -63,61 +89,69 @@ public class VMKernel extends UserKernel {
 
     //make sure there are free pages
     if(freePages.size() > 0) {
-      	ppn = ((Integer)freePages.removeFirst()).intValue();
+      	ppn = freePages.removeFirst().intValue();
     }
     else{
-    	//clock algorithm for victim 
+    	//the replacement policy picks the victim
 	int toEvict = 0;
 
-	//sync
-	for(int i = 0; i < Machine.processor().getTLBSize(); i++){
-		TranslationEntry entry = Machine.processor().readTLBEntry(i);
-		proc.syncTLBPTE(entry); 
-	}
+	Processor processor = Machine.processor();
 	pinLock.acquire();
 	if(pinCounter == Machine.processor().getNumPhysPages()){
 		
 		pinCond.sleep();
 	}
 	pinLock.release();
-	while(true){	
-		memInfo info = invertedPageTable[clockhand];
 
-		if(info.te.used){
-			info.te.used = false;
-		}
-		else if(!info.pinned){
-			break;
-		}
-		//increment
-		clockhand = (clockhand+1) % (invertedPageTable.length);
+	//sync every TLB, since they hold other processes' entries too; nothing
+	//may sleep from here until the victim is unmapped, or a write through a
+	//TLB entry could be missed
+	for(int cpu = 0; cpu < Machine.numProcessors(); cpu++){
+		VMProcess.syncTLB(Machine.processor(cpu));
 	}
-	
-	toEvict = clockhand;
-	clockhand = (clockhand+1) % (invertedPageTable.length); 
+	toEvict = replacement.selectVictim();
      
 	TranslationEntry victim = invertedPageTable[toEvict].te;
 	// Sync tlb entries
 	TranslationEntry [] pageTable = invertedPageTable[toEvict].getPageTable();
-     	
-	//if dirty swap out
-     	if(victim.dirty){
-		swapOut(toEvict, proc);
-	}
-   	
 	ppn = toEvict;
-   	//invalidate pte and tlb entry of victim
-   	invertedPageTable[victim.ppn].te.valid = false;
+
+   	//invalidate pte and tlb entry of victim before writing it out, so that
+	//the owner faults instead of writing to the page during the write
   	pageTable[victim.vpn].valid = false;
 	
-	//sync tlb and check if valid && ppn matches, write a false tlb entry 
-	for(int i = 0; i < Machine.processor().getTLBSize(); i++){
-		TranslationEntry entry = Machine.processor().readTLBEntry(i);
-		if(entry.valid && entry.ppn == ppn){
-			Machine.processor().writeTLBEntry(i,new TranslationEntry());
-			break;
+	//check if valid && ppn matches, write a false tlb entry; a process
+	//that exited may have left another entry for the frame
+	for(int i = 0; i < processor.getTLBSize(); i++){
+		if((processor.getTLBFlags(i) & TranslationEntry.flagValid) != 0
+				&& processor.getTLBPpn(i) == ppn){
+			processor.setTLBEntry(i, 0, 0, 0);
 		}
 	}	
+
+	//the other processors may still cache the victim's translation, and
+	//write through it until the shootdown reaches them; each one saves its
+	//dirty bits when it does, so wait for all of them before the write
+	int sent = 0;
+	for(int cpu = 0; cpu < Machine.numProcessors(); cpu++){
+		final Processor other = Machine.processor(cpu);
+		if(other != processor){
+			other.sendShootdown(ppn, new Runnable() {
+				public void run() {
+					VMProcess.syncTLB(other);
+					shootdownDone.V();
+				}
+			});
+			sent++;
+		}
+	}
+	for(int i = 0; i < sent; i++)
+		shootdownDone.P();
+     
+	//if dirty swap out
+     	if(victim.dirty){
+		swapOut(toEvict, proc);
+	}
    }
    return ppn;
  }
@@ -138,20 +172,50 @@ public class VMKernel extends UserKernel {
 		}
 
 		// Have to get swap page associated to toSwap
-		Integer writeSpn = info.owner.vpnSpnPair.get(info.te.vpn);
- 
-		//if no mapping exists, increase swapFile and associate vpn
-		if(writeSpn == null){
-			writeSpn = lastSwapPage++; 
-			info.owner.vpnSpnPair.put(info.te.vpn,writeSpn);
-		}
+		int writeSpn = getSwapSlot(info.owner, info.te.vpn);
 
 		swapFile.write(writeSpn*pageSize, memory, info.te.ppn*pageSize, pageSize); 
+		numSwapWrites++;
 
 		TranslationEntry toInvalidate = info.te;
 		toInvalidate.valid = false; 
 	}
 	
+	/**
+	 * Return the swap slot associated with a page. If no mapping exists,
+	 * allocate a slot, next to the neighbouring pages' slots if possible, and
+	 * associate it with the page.
+	 *
+	 * @return the slot for the page.
+	 */
+	static int getSwapSlot(VMProcess proc, int vpn) {
+		Integer spn = proc.vpnSpnPair.get(vpn);
+		if(spn == null){
+			spn = swapAllocator.allocate(preferredSwapSlot(proc, vpn));
+			proc.vpnSpnPair.put(vpn, spn);
+		}
+		return spn;
+	}
+
+	/**
+	 * Return the slot after the one holding the previous page, or else the
+	 * slot before the one holding the next page, so that pages that are next
+	 * to each other in memory are next to each other in swap.
+	 *
+	 * @return the preferred slot for the page, or -1 for none.
+	 */
+	private static int preferredSwapSlot(VMProcess proc, int vpn) {
+		Integer spn = proc.vpnSpnPair.get(vpn - 1);
+		if(spn != null)
+			return spn + 1;
+
+		spn = proc.vpnSpnPair.get(vpn + 1);
+		if(spn != null && spn > 0)
+			return spn - 1;
+
+		return -1;
+	}
+
 	// Swap page from disk to physical memory
 	public static void swapIn(int vpn, VMProcess proc, int ppn){
 		memInfo mi = new memInfo(vpn, proc, false); 
@@ -169,6 +233,69 @@ public class VMKernel extends UserKernel {
 		
 	}
 
+	/**
+	 * Swap in consecutive pages, held in consecutive slots, with a single
+	 * read of the swap file.
+	 *
+	 * @param vpn the first page to swap in.
+	 * @param proc the process the pages belong to.
+	 * @param ppns the physical pages to swap into, one for each page.
+	 * @param count the number of pages to swap in.
+	 */
+	public static void swapIn(int vpn, VMProcess proc, int[] ppns, int count){
+		int spn = proc.vpnSpnPair.get(vpn);
+		for(int i = 1; i < count; i++)
+			Lib.assertTrue(proc.vpnSpnPair.get(vpn + i) == spn + i);
+
+		byte [] memory = Machine.processor().getMemory();
+		byte [] buffer = new byte[count*pageSize];
+
+		swapFile.read(spn*pageSize, buffer, 0, count*pageSize);
+
+		TranslationEntry [] pageTable = proc.getPageTable();
+		for(int i = 0; i < count; i++){
+			System.arraycopy(buffer, i*pageSize, memory, ppns[i]*pageSize,
+				pageSize);
+			pageTable[vpn + i].valid = true;
+		}
+	}
+
+	/**
+	 * The frames of physical memory, as the replacement policy sees them.
+	 */
+	private static class LiveFrames implements PageReplacement.Frames {
+		public int getNumFrames() {
+			return invertedPageTable.length;
+		}
+
+		public Object getPage(int ppn) {
+			memInfo info = invertedPageTable[ppn];
+			return info == null ? null : info.te;
+		}
+
+		public boolean isUsed(int ppn) {
+			return invertedPageTable[ppn].te.used;
+		}
+
+		public void clearUsed(int ppn) {
+			invertedPageTable[ppn].te.used = false;
+		}
+
+		public boolean isDirty(int ppn) {
+			TranslationEntry te = invertedPageTable[ppn].te;
+			return te.dirty && !te.readOnly;
+		}
+
+		public boolean isEvictable(int ppn) {
+			memInfo info = invertedPageTable[ppn];
+			return !info.pinned && !info.cleaning;
+		}
+
+		public long getTime() {
+			return Machine.timer().getTime();
+		}
+	}
+
 	/*ClutchAF made */
 	public static class memInfo{
 		int vpn;
@@ -176,6 +303,8 @@ public class VMKernel extends UserKernel {
 		TranslationEntry te; 
 		int pinCount = 0;
 		boolean pinned;
+		//being written to swap by the page cleaner
+		boolean cleaning = false;
 
 		public memInfo(int vpn, VMProcess owner, boolean pinned){
 			this.vpn = vpn;
@@ -199,9 +328,15 @@ public class VMKernel extends UserKernel {
 	private static final char dbgVM = 'v';
 	
 	/* ClutchAF variables*/
-	private static int lastSwapPage = 0; 
+	public static SwapAllocator swapAllocator;
 	
-	private static int clockhand = 0;
+	/** The policy that chooses which page to evict. */
+	public static PageReplacement replacement;
+
+	/** The number of pages written to swap, by faults and the cleaner. */
+	public static long numSwapWrites = 0;
+
+	private static PageCleaner pageCleaner = null;
 
 	public static OpenFile swapFile; 
 
@@ -215,9 +350,13 @@ public class VMKernel extends UserKernel {
 	
 	public static Condition pinCond;
 	
-	public static Lock bigLock; 
+	public static ReadWriteLock bigLock; 
 
 	public static Lock pinLock;
+
+	/** Signalled as each TLB shootdown sent by <tt>allocate()</tt> arrives. */
+	private static Semaphore shootdownDone;
+
 	// counts the number of pinned pages
 	public static int pinCounter = 0;
 
@@ -17,27 +17,23 @@ public class VMProcess extends UserProcess {
 		super();
 		vpnSpnPair = new HashMap<Integer, Integer>();
 		coffMap = new HashMap<Integer, CoffSection>();
+		maxFaultAround = Config.getInteger("VMProcess.maxFaultAround", 8);
 	}
 
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
+	 *
+	 * <p>
+	 * The TLB entries of this process are tagged with its address-space
+	 * identifier, so they stay in the TLB for when it runs again. Only their
+	 * used and dirty bits are copied to the page tables.
 	 */
 	public void saveState() {
 		super.saveState();
-		
-		Processor processor = Machine.processor();	
-		int tlbSize = processor.getTLBSize();
 
-		for(int i = 0; i < tlbSize; i++){
-			TranslationEntry entry = processor.readTLBEntry(i);
-			if(entry.valid){
-				pageTable[entry.vpn] = entry;
-				entry.valid = false;
-				processor.writeTLBEntry(i, entry);
-     				entry.valid = true;
-			}
-		}
+		syncTLB(Machine.processor());
+		onProcessor = false;
 	}
 
 	/**
@@ -45,6 +41,57 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
+		if (asid < 0)
+			asid = assignASID(this);
+
+		Machine.processor().setASID(asid);
+		onProcessor = true;
+	}
+
+	/**
+	 * Give a process an address-space identifier. A free one is used if there
+	 * is one; otherwise one is taken from a process that is not running, which
+	 * gets a new one when it next runs. Entries left in the TLB under the
+	 * identifier, by a process that exited or by the one it was taken from,
+	 * are invalidated on every processor first.
+	 *
+	 * @return the address-space identifier.
+	 */
+	private static int assignASID(VMProcess process) {
+		int numASIDs = asidOwners.length;
+
+		int asid = -1;
+		for (int i = 0; i < numASIDs && asid < 0; i++) {
+			if (asidOwners[(nextASID + i) % numASIDs] == null)
+				asid = (nextASID + i) % numASIDs;
+		}
+
+		if (asid < 0) {
+			for (int i = 0; i < numASIDs && asid < 0; i++) {
+				if (!asidOwners[(nextASID + i) % numASIDs].onProcessor)
+					asid = (nextASID + i) % numASIDs;
+			}
+			Lib.assertTrue(asid >= 0);
+
+			// keep the used and dirty bits of the entries about to go
+			for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+				syncTLB(Machine.processor(cpu));
+
+			asidOwners[asid].asid = -1;
+			numASIDsTaken++;
+		}
+
+		if (asidUsed[asid]) {
+			for (int cpu = 0; cpu < Machine.numProcessors(); cpu++)
+				Machine.processor(cpu).invalidateTLB(asid);
+			numASIDFlushes++;
+		}
+
+		asidUsed[asid] = true;
+		asidOwners[asid] = process;
+		nextASID = (asid + 1) % numASIDs;
+
+		return asid;
 	}
 
 	/**
@@ -89,7 +136,31 @@ public class VMProcess extends UserProcess {
 	 * Release any resources allocated by <tt>loadSections()</tt>.
 	 */
 	protected void unloadSections() {
-		super.unloadSections();
+		VMKernel.bigLock.acquireWrite();
+
+		// the TLB entries left under this process's address-space identifier
+		// are invalidated when the identifier is given out again
+		if (asid >= 0) {
+			asidOwners[asid] = null;
+			asid = -1;
+		}
+
+		// only resident pages hold a frame; the others' frames were evicted
+		for (int vpn = 0; vpn < numPages; vpn++) {
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid) {
+				entry.valid = false;
+				UserKernel.freePages.add(new Integer(entry.ppn));
+				VMKernel.replacement.pageFreed(entry.ppn);
+			}
+		}
+
+		for (Integer spn : vpnSpnPair.values())
+			VMKernel.swapAllocator.free(spn);
+		vpnSpnPair.clear();
+		PageReplacement.recordExit(processID());
+
+		VMKernel.bigLock.releaseWrite();
 	}
 
 	public int pinVirtualPage(int vpn, boolean beingWritten){	
@@ -98,8 +169,14 @@ public class VMProcess extends UserProcess {
 	    		return -1;
 		TranslationEntry entry = pageTable[vpn];
 		
-		if (!entry.valid || entry.vpn != vpn)
-	    		handlePageFault(vpn);
+		if (!entry.valid || entry.vpn != vpn) {
+			// the page may be on its way out to swap, so wait for the
+			// fault that is writing it, as a TLB miss would
+			VMKernel.bigLock.acquireWrite();
+			if (!entry.valid)
+	    			handlePageFault(vpn);
+			VMKernel.bigLock.releaseWrite();
+		}
 
 		if (beingWritten) {
 	    		if (entry.readOnly)
@@ -147,57 +224,100 @@ public class VMProcess extends UserProcess {
 	}
 
 	public void handleTLBMiss(int vaddr){
-		VMKernel.bigLock.acquire(); 
 		if(vaddr < 0 || vaddr >= numPages*pageSize){
 			super.handleExit(0); 
 		}
 		
+		// refilling the TLB from a resident page does not change the frame
+		// table, so other processes can do the same at once. It does write:
+		// it appends to the PageReplacement trace, and writes back the used
+		// and dirty bits of the TLB entry it replaces, which may be another
+		// process's. That is safe only because nothing between here and the
+		// release blocks, apart from taking the lock for writing to fault a
+		// page in
+		VMKernel.bigLock.acquireRead(); 
+
 		Processor processor = Machine.processor();
 	
 		int vpn = processor.pageFromAddress(vaddr);
+		PageReplacement.record(processID(), vpn);
 
 		TranslationEntry pte = pageTable[vpn];
 
     		if(!pte.valid) {
-      			handlePageFault(vpn);
+			// a fault changes the frame table and other processes' page
+			// tables, so it needs the lock to itself
+			VMKernel.bigLock.releaseRead();
+			VMKernel.bigLock.acquireWrite();
+			if(!pte.valid)
+      				handlePageFault(vpn);
+			VMKernel.bigLock.downgrade();
     		}
 
-		int tlbSize = processor.getTLBSize();
+		// the translation can only go in the set that vpn maps to
+		int ways = processor.getTLBAssociativity();
+		int first = processor.getTLBSet(vpn) * ways;
 
-		int evictIndex = 0;
+		int evictIndex = first;
 
-		for(int i = 0; i < tlbSize; i++){
-			TranslationEntry entry = processor.readTLBEntry(i);
-			
-			if(!entry.valid){
+		for(int i = first; i < first + ways; i++){
+			//an entry left by a process that exited is as good as invalid
+			if((processor.getTLBFlags(i) & TranslationEntry.flagValid) == 0
+					|| asidOwners[processor.getTLBASID(i)] == null){
 				evictIndex = i;
 				break;
 			}
 			
-			if(i == tlbSize - 1){
-				evictIndex = Lib.random(tlbSize);
-				entry = processor.readTLBEntry(evictIndex);
+			if(i == first + ways - 1){
+				evictIndex = first + Lib.random(ways);
 				
-				// Synch victim's page table entry
-				if(entry.valid){
-					int victimVPN = entry.vpn;
-					pageTable[victimVPN].dirty = entry.dirty;
-					pageTable[victimVPN].used = entry.used;
-				}
+				// Synch victim's page table entry, which may be another
+				// process's
+				syncTLBEntry(processor, evictIndex);
 				break;
 			}
 		}
 
-		processor.writeTLBEntry(evictIndex, pte);
-		VMKernel.bigLock.release();
+		processor.setTLBEntry(evictIndex, pte.vpn, pte.ppn, pte.getFlags());
+		VMKernel.bigLock.releaseRead();
 	}
 
+  /**
+   * Bring in the page at <i>vpn</i>, along with up to <tt>faultAround</tt>
+   * of the pages after it that can be read with the same read of the swap
+   * file or the executable. The window doubles while faults are sequential,
+   * each fault landing just past the pages brought in by the one before, and
+   * halves otherwise. Free frames are used for the pages after the faulting
+   * one first; once the window reaches two pages, frames are also taken
+   * from other pages, since a sequential sweep would evict them anyway.
+   */
   public void handlePageFault(int vpn) {
     	TranslationEntry pte = pageTable[vpn];
 	int ppn = VMKernel.allocate(vpn, this);
+	//pin the frame so that taking more frames cannot evict it again
+	VMKernel.invertedPageTable[ppn] = new VMKernel.memInfo(vpn, this, true);
+
+	if(vpn == nextSequentialFault)
+		faultAround = Math.min(Math.max(2*faultAround, 1), maxFaultAround);
+	else
+		faultAround /= 2;
+	//never take more than a quarter of memory for pages ahead
+	int extra = Math.min(faultAround,
+		Machine.processor().getNumPhysPages() / 4);
+	if(faultAround < 2)
+		extra = Math.min(extra, UserKernel.freePages.size());
+
+	int[] ppns;
+	//loading page from swap, with the pages in the slots after it
+	if(vpnSpnPair.get(vpn) != null){
+		ppns = takeFrames(vpn, ppn, swapRun(vpn, extra));
+		VMKernel.swapIn(vpn, this, ppns, ppns.length);
+		numReads++;
+	}
 	//if it's a stack/args page
-	if(coffMap.get(vpn) == null) {
-	
+	else if(coffMap.get(vpn) == null) {
+		ppns = new int[] { ppn };
+
 		//new stack page	
 		if( pte.ppn == -1)
 		{
@@ -211,33 +331,146 @@ public class VMProcess extends UserProcess {
 			VMKernel.swapIn(pte.vpn, this, ppn);
 		}
     	}
-	//if loading from coff
-    	else if(vpnSpnPair.get(vpn) == null){
-      		if(pte.readOnly == false){
-			pte.dirty = true;
-		}
+	//if loading from coff, with the pages after it in the section
+    	else{
 		CoffSection csection = coffMap.get(vpn);
-      		int offset = vpn - csection.getFirstVPN();
-      		csection.loadPage(offset, ppn);
+		ppns = takeFrames(vpn, ppn, coffRun(vpn, csection, extra));
+      		csection.loadPages(vpn - csection.getFirstVPN(), ppns, ppns.length);
+		if(csection.isInitialzed())
+			numReads++;
 
+		for(int i = 0; i < ppns.length; i++){
+      			if(pageTable[vpn + i].readOnly == false)
+				pageTable[vpn + i].dirty = true;
+		}
     	}
-	//oading coff page from swap
-	else{
-		VMKernel.swapIn(pte.vpn,this,ppn);
-	}	
-	//set entry to true
-    	pte.valid = true;
-	pte.ppn = ppn;
- 	VMKernel.memInfo info = new VMKernel.memInfo(vpn,this, false); 	
-	VMKernel.invertedPageTable[pte.ppn] = info; 
-	
+
+	//set entries to true
+	for(int i = 0; i < ppns.length; i++){
+		TranslationEntry entry = pageTable[vpn + i];
+    		entry.valid = true;
+		entry.ppn = ppns[i];
+		//a page brought in ahead goes first if it is never used
+		if(i > 0)
+			entry.used = false;
+ 		VMKernel.memInfo info = new VMKernel.memInfo(vpn + i,this, false); 	
+		VMKernel.invertedPageTable[entry.ppn] = info; 
+		VMKernel.replacement.pageLoaded(entry.ppn);
+	}
+
+	numFaults++;
+	numPagesAhead += ppns.length - 1;
+	nextSequentialFault = vpn + ppns.length;
   }
-	
+
+	/**
+	 * Return how many pages, starting at <i>vpn</i> and up to <i>extra</i>
+	 * more, are not resident and are in consecutive swap slots.
+	 */
+	private int swapRun(int vpn, int extra) {
+		int spn = vpnSpnPair.get(vpn);
+		int count = 1;
+		while (count <= extra && vpn + count < numPages) {
+			Integer next = vpnSpnPair.get(vpn + count);
+			if (pageTable[vpn + count].valid || next == null
+					|| next != spn + count)
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Return how many pages, starting at <i>vpn</i> and up to <i>extra</i>
+	 * more, are not resident and are still to be loaded from the same COFF
+	 * section.
+	 */
+	private int coffRun(int vpn, CoffSection section, int extra) {
+		int count = 1;
+		while (count <= extra && vpn + count < numPages) {
+			int next = vpn + count;
+			if (pageTable[next].valid || coffMap.get(next) != section
+					|| vpnSpnPair.get(next) != null)
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Return <i>ppn</i>, the frame for <i>vpn</i>, followed by frames for the
+	 * pages after it, to make <i>count</i>. Each frame is pinned until the
+	 * fault finishes.
+	 */
+	private int[] takeFrames(int vpn, int ppn, int count) {
+		int[] ppns = new int[count];
+		ppns[0] = ppn;
+		for (int i = 1; i < count; i++) {
+			ppns[i] = VMKernel.allocate(vpn + i, this);
+			VMKernel.invertedPageTable[ppns[i]] =
+				new VMKernel.memInfo(vpn + i, this, true);
+		}
+		return ppns;
+	}
+
+	/**
+	 * Print the number of page faults, the pages brought in ahead of a
+	 * fault, and the reads they took, under the <tt>v</tt> debug flag.
+	 */
+	public static void printStats() {
+		Lib.debug(dbgVM, "Page faults: " + numFaults + ", " + numPagesAhead
+				+ " pages brought in ahead, " + numReads + " reads");
+		Lib.debug(dbgVM, "ASIDs: " + numASIDFlushes + " reused after a flush, "
+				+ numASIDsTaken + " taken from another process");
+	}
+
+	/**
+	 * Copy the used and dirty bits of every valid entry in a processor's TLB
+	 * to the page table of the process the entry belongs to.
+	 *
+	 * @param processor the processor whose TLB to sync.
+	 */
+	public static void syncTLB(Processor processor) {
+		for (int i = 0; i < processor.getTLBSize(); i++)
+			syncTLBEntry(processor, i);
+	}
+
+	/**
+	 * Copy the used and dirty bits of a TLB entry to the page table of the
+	 * process the entry belongs to. The dirty bit is then cleared in the TLB,
+	 * since the processor sets it again on the next write, so a page the
+	 * page cleaner has since written is not marked dirty again. The used bit
+	 * is left set, so a page with a translation in the TLB keeps looking used.
+	 */
+	private static void syncTLBEntry(Processor processor, int i) {
+		int flags = processor.getTLBFlags(i);
+		int bits = TranslationEntry.flagUsed | TranslationEntry.flagDirty;
+		if((flags & TranslationEntry.flagValid) == 0 || (flags & bits) == 0)
+			return;
+
+		VMProcess owner = asidOwners[processor.getTLBASID(i)];
+		if(owner == null)
+			return;
+
+		owner.syncTLBPTE(processor.getTLBVpn(i), flags);
+		processor.setTLBEntry(i, processor.getTLBASID(i),
+			processor.getTLBVpn(i), processor.getTLBPpn(i),
+			flags & ~TranslationEntry.flagDirty);
+	}
+
 	/* ClutchAF made */
 	public void syncTLBPTE( TranslationEntry te ){
-		if(te.valid){
-			pageTable[te.vpn].dirty = te.dirty;
-			pageTable[te.vpn].used = te.used;
+		syncTLBPTE(te.vpn, te.getFlags());
+	}
+
+	/* Same as above, from the vpn and flags of a TLB entry; the bits only
+	 * ever get set here, since the TLB entry may have been synced before */
+	public void syncTLBPTE( int vpn, int flags ){
+		if((flags & TranslationEntry.flagValid) != 0){
+			if((flags & TranslationEntry.flagDirty) != 0)
+				pageTable[vpn].dirty = true;
+			if((flags & TranslationEntry.flagUsed) != 0)
+				pageTable[vpn].used = true;
 		}
 	}
 
@@ -261,4 +494,39 @@ public class VMProcess extends UserProcess {
  	
 	/* ClutchAF made*/
 	private HashMap<Integer, CoffSection> coffMap;
+
+	/** The most pages to bring in after a faulting page. */
+	private int maxFaultAround;
+
+	/** The number of pages to bring in after the next faulting page. */
+	private int faultAround = 0;
+
+	/** The page just past those brought in by the last fault. */
+	private int nextSequentialFault = -1;
+
+	private static long numFaults = 0;
+
+	private static long numPagesAhead = 0;
+
+	private static long numReads = 0;
+
+	/** This process's address-space identifier, or -1 if it has none. */
+	private int asid = -1;
+
+	/** Whether this process is running on a processor. */
+	private boolean onProcessor = false;
+
+	/** The process each address-space identifier belongs to, if any. */
+	private static VMProcess[] asidOwners =
+		new VMProcess[Machine.processor().getNumASIDs()];
+
+	/** Whether each address-space identifier has been given out before. */
+	private static boolean[] asidUsed = new boolean[asidOwners.length];
+
+	/** Where to start looking for a free address-space identifier. */
+	private static int nextASID = 0;
+
+	private static long numASIDFlushes = 0;
+
+	private static long numASIDsTaken = 0;
 }
@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock algorithm. Like the clock, a hand sweeps the frames, clearing
+ * used bits, but it also notes when it last found each page used. A page
+ * that has not been used for <tt>WSClockReplacement.tau</tt> ticks is out of
+ * its process's working set, and the first such page that is clean is
+ * evicted.
+ *
+ * <p>
+ * The original algorithm schedules writes of dirty pages out of the working
+ * set as it passes them. Here the page cleaner does those writes, so the hand
+ * only passes over them. If a whole sweep finds no clean page outside the
+ * working set, the least recently used evictable page is taken, preferring
+ * a clean one.
+ */
+public class WSClockReplacement extends PageReplacement {
+	/**
+	 * Allocate a new WSClock policy, with the working set window given by
+	 * <tt>WSClockReplacement.tau</tt>.
+	 */
+	public WSClockReplacement() {
+		tau = Config.getInteger("WSClockReplacement.tau", 10000);
+		Lib.assertTrue(tau > 0);
+	}
+
+	public void initialize(Frames frames) {
+		super.initialize(frames);
+
+		lastUse = new long[frames.getNumFrames()];
+	}
+
+	public void pageLoaded(int ppn) {
+		lastUse[ppn] = frames.getTime();
+	}
+
+	public int selectVictim() {
+		int numFrames = frames.getNumFrames();
+		long time = frames.getTime();
+
+		int oldestClean = -1, oldestDirty = -1;
+
+		for (int i = 0; i < 2 * numFrames; i++) {
+			int ppn = hand;
+			hand = (hand + 1) % numFrames;
+
+			if (frames.isUsed(ppn)) {
+				frames.clearUsed(ppn);
+				lastUse[ppn] = time;
+				continue;
+			}
+			if (!frames.isEvictable(ppn))
+				continue;
+
+			if (!frames.isDirty(ppn)) {
+				if (time - lastUse[ppn] > tau)
+					return ppn;
+				if (oldestClean < 0 || lastUse[ppn] < lastUse[oldestClean])
+					oldestClean = ppn;
+			}
+			else if (oldestDirty < 0 || lastUse[ppn] < lastUse[oldestDirty]) {
+				oldestDirty = ppn;
+			}
+
+			// after a whole sweep, settle for the best page seen
+			if (i >= numFrames - 1 && (oldestClean >= 0 || oldestDirty >= 0))
+				break;
+		}
+
+		if (oldestClean >= 0)
+			return oldestClean;
+		if (oldestDirty >= 0)
+			return oldestDirty;
+
+		// every frame is pinned or being written; sweep until one is not
+		while (!frames.isEvictable(hand))
+			hand = (hand + 1) % numFrames;
+		int victim = hand;
+		hand = (hand + 1) % numFrames;
+		return victim;
+	}
+
+	public int getHand() {
+		return hand;
+	}
+
+	/** The working set window, in ticks. */
+	private int tau;
+
+	/** When each frame's page was last found used. */
+	private long[] lastUse;
+
+	private int hand = 0;
+}